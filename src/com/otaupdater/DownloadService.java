@@ -16,15 +16,20 @@
 
 package com.otaupdater;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.annotation.TargetApi;
 import android.app.DownloadManager;
@@ -38,23 +43,37 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.otaupdater.utils.BandwidthLimiter;
 import com.otaupdater.utils.Config;
+import com.otaupdater.utils.DlChanges;
 import com.otaupdater.utils.DlState;
+import com.otaupdater.utils.DownloadCache;
+import com.otaupdater.utils.DownloadRegistry;
 import com.otaupdater.utils.DownloadTask;
 import com.otaupdater.utils.DownloadTask.DownloadListener;
 import com.otaupdater.utils.DownloadTask.DownloadResult;
+import com.otaupdater.utils.ProgressSnapshot;
 import com.otaupdater.utils.KernelInfo;
+import com.otaupdater.utils.QuotaManager;
+import com.otaupdater.utils.RetryScheduler;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.StateJournal;
+import com.otaupdater.utils.Utils;
 
 public class DownloadService extends Service implements DownloadListener {
     public static final String SERVICE_ACTION = "com.otaupdater.downloadservice.command";
@@ -65,6 +84,8 @@ public class DownloadService extends Service implements DownloadListener {
     public static final int CMD_RESUME = 3;
     public static final int CMD_CANCEL = 4;
     public static final int CMD_RETRY = 5;
+    public static final int CMD_RETRY_DUE = 6;
+    public static final int CMD_LIMITS_CHANGED = 7;
 
     public static final String EXTRAL_DOWNLOAD_ID = "download_id";
 
@@ -72,6 +93,8 @@ public class DownloadService extends Service implements DownloadListener {
     public static final int EXTRA_INFO_TYPE_ROM = 1;
     public static final int EXTRA_INFO_TYPE_KERNEL = 2;
 
+    public static final String EXTRA_PRIORITY = "priority";
+
     public static final int STOP_NO_DATA = 1;
     public static final int STOP_NO_WIFI = 2;
 
@@ -84,6 +107,30 @@ public class DownloadService extends Service implements DownloadListener {
     private final SparseArray<DlState> DOWNLOADS = new SparseArray<DlState>();
     private final SparseArray<DownloadTask> DOWNLOAD_THREADS = new SparseArray<DownloadTask>();
 
+    /*
+     * Change feed: the sequence number of the last change of each download, oldest first,
+     * and of the last status change in STATUS_CHANGES.
+     * Sequence numbers start from the clock so a client holding one from an earlier process
+     * always falls outside [changeFloor, changeSeq] and gets a reset.
+     */
+    private long changeSeq = System.currentTimeMillis() << 16;
+    private long changeFloor = changeSeq;
+    private final LinkedHashMap<Integer, Long> CHANGES = new LinkedHashMap<Integer, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            if (size() <= Config.DL_CHANGE_LOG_MAX) return false;
+            changeFloor = eldest.getValue();
+            STATUS_CHANGES.remove(eldest.getKey());
+            return true;
+        }
+    };
+    private final SparseArray<Long> STATUS_CHANGES = new SparseArray<Long>();
+
+    private final RemoteCallbackList<IDownloadListener> LISTENERS = new RemoteCallbackList<IDownloadListener>();
+    private final SparseArray<Long> PROGRESS_PUSHED = new SparseArray<Long>();
+
     private boolean serviceInUse = false;
     private int startId = -1;
 
@@ -92,14 +139,23 @@ public class DownloadService extends Service implements DownloadListener {
     private NotificationManager nm;
     private WakeLock wakeLock;
 
-    private boolean isNetStateDirty = true;
+    private volatile int netStateVersion = 1;
+
+    private RetryScheduler retryScheduler;
 
     private long minNextNotifUpdate = 0;
     private static final long NOTIF_REFRESH_DELAY = 500;
 
-    private long minNextWriteUpdate = 0;
+    private StateJournal journal;
+    private DownloadRegistry registry;
     private static final long WRITE_STATE_DELAY = 100;
+
+    private int progressMsgCount = 0;
+    private long progressWindowStart = 0;
+    private float progressMsgRate = 0;
+    private static final long PROGRESS_RATE_WINDOW = 10000;
     private static final String STATE_STORE_NAME = "service_state";
+    private static final String STATE_JOURNAL_NAME = "service_state.journal";
 
     private static final int IDLE_DELAY = 60000;
     private final Handler DELAY_STOP_HANDLER = new StopHandler(this);
@@ -126,6 +182,13 @@ public class DownloadService extends Service implements DownloadListener {
         return BINDER;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Progress messages: " + progressMsgRate + "/s");
+        retryScheduler.dump(pw, DOWNLOADS);
+        journal.dump(pw);
+    }
+
     @Override
     public void onRebind(Intent intent) {
         DELAY_STOP_HANDLER.removeCallbacksAndMessages(null);
@@ -150,8 +213,9 @@ public class DownloadService extends Service implements DownloadListener {
             Log.v(Config.LOG_TAG + "Service", "got action: " + action);
 
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
-                isNetStateDirty = true;
-                if (DOWNLOAD_THREADS.size() == 0 && DOWNLOAD_QUEUE.size() != 0) {
+                netStateVersion++;
+                BandwidthLimiter.updateLimits(this);
+                if (DOWNLOAD_QUEUE.size() != 0) {
                     tryStartQueue();
                 }
             } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
@@ -164,12 +228,13 @@ public class DownloadService extends Service implements DownloadListener {
                 switch (cmd) {
                 case CMD_DOWNLOAD:
                     int type = intent.getIntExtra(EXTRA_INFO_TYPE, -1);
+                    int priority = intent.getIntExtra(EXTRA_PRIORITY, DlState.PRIORITY_INTERACTIVE);
                     switch (type) {
                     case EXTRA_INFO_TYPE_ROM:
-                        queueDownload(RomInfo.fromIntent(intent));
+                        queueDownload(RomInfo.fromIntent(intent), priority);
                         break;
                     case EXTRA_INFO_TYPE_KERNEL:
-                        queueDownload(KernelInfo.fromIntent(intent));
+                        queueDownload(KernelInfo.fromIntent(intent), priority);
                         break;
                     }
 
@@ -178,8 +243,8 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         pause(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            if (DOWNLOADS.get(id).getStatus() == DlState.STATUS_RUNNING) pause(id);
+                        for (int q = DOWNLOAD_THREADS.size() - 1; q >= 0; q--) {
+                            pause(DOWNLOAD_THREADS.keyAt(q));
                         }
                     }
                     break;
@@ -187,8 +252,8 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         resume(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            if (DOWNLOADS.get(id).getStatus() == DlState.STATUS_PAUSED_USER) resume(id);
+                        for (int q = 0; q < DOWNLOADS.size(); q++) {
+                            if (DOWNLOADS.valueAt(q).getStatus() == DlState.STATUS_PAUSED_USER) resume(DOWNLOADS.keyAt(q));
                         }
                     }
                     break;
@@ -196,11 +261,9 @@ public class DownloadService extends Service implements DownloadListener {
                     if (intent.hasExtra(EXTRAL_DOWNLOAD_ID)) {
                         cancel(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     } else {
-                        for (int id : DOWNLOAD_QUEUE) {
-                            int status = DOWNLOADS.get(id).getStatus();
-                            if (status != DlState.STATUS_CANCELLED_USER &&
-                                    status != DlState.STATUS_COMPLETED &&
-                                    status != DlState.STATUS_FAILED) cancel(id);
+                        // cancelling a download with no task evicts it from DOWNLOADS
+                        for (int q = DOWNLOADS.size() - 1; q >= 0; q--) {
+                            if (q < DOWNLOADS.size()) cancel(DOWNLOADS.keyAt(q));
                         }
                     }
                     break;
@@ -209,6 +272,10 @@ public class DownloadService extends Service implements DownloadListener {
                         retry(intent.getIntExtra(EXTRAL_DOWNLOAD_ID, 0));
                     }
                     break;
+                case CMD_RETRY_DUE:
+                case CMD_LIMITS_CHANGED:
+                    tryStartQueue();
+                    break;
                 }
             }
         }
@@ -226,8 +293,18 @@ public class DownloadService extends Service implements DownloadListener {
         nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
         cfg = Config.getInstance(getApplicationContext());
+        BandwidthLimiter.updateLimits(this);
+
+        Intent retryIntent = new Intent(this, DownloadService.class);
+        retryIntent.setAction(SERVICE_ACTION);
+        retryIntent.putExtra(EXTRA_CMD, CMD_RETRY_DUE);
+        retryScheduler = new RetryScheduler(this, PendingIntent.getService(this, 0, retryIntent, PendingIntent.FLAG_UPDATE_CURRENT));
 
+        journal = new StateJournal(new File(getFilesDir(), STATE_JOURNAL_NAME));
+        registry = DownloadRegistry.getInstance(this);
         loadState();
+        retryScheduler.rearm(DOWNLOADS);
+        QuotaManager.getInstance(this).enforceAsync(getFilesInUse());
 
         wakeLock = ((PowerManager) getSystemService(Context.POWER_SERVICE)).
                 newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, this.getClass().getName());
@@ -245,13 +322,18 @@ public class DownloadService extends Service implements DownloadListener {
         DELAY_STOP_HANDLER.removeCallbacksAndMessages(null);
         wakeLock.release();
 
+        // record and announce the pauses while the journal and listeners are still around
         for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
             DownloadTask task = DOWNLOAD_THREADS.valueAt(q);
             DlState state = task.getState();
             state.setStatus(DlState.STATUS_PAUSED_SYSTEM);
-            task.pause();
+            task.pause(DlState.STATUS_PAUSED_SYSTEM);
+            saveState(state, true);
         }
 
+        journal.close();
+        LISTENERS.kill();
+
         super.onDestroy();
     }
 
@@ -259,12 +341,15 @@ public class DownloadService extends Service implements DownloadListener {
     public void onStart(DlState state) {
         wakeLock.acquire();
         state.setStatus(DlState.STATUS_RUNNING);
+        markChanged(state, false);
         updateStatusNotif(true);
     }
 
     @Override
     public int onCheckContinue(DlState state) {
-        if (isNetStateDirty) {
+        int curNetVersion = netStateVersion;
+        if (state.getNetStateVersion() != curNetVersion) {
+            state.setNetStateVersion(curNetVersion);
             int netCheck = checkNetwork(state);
             if (netCheck == NETWORK_NOT_CONNECTED) {
                 return STOP_NO_DATA;
@@ -280,20 +365,51 @@ public class DownloadService extends Service implements DownloadListener {
     @Override
     public void onLengthReceived(DlState state) {
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state, true);
+    }
+
+    @Override
+    public void onConnectionsReleased(DlState state) {
+        if (DOWNLOAD_QUEUE.size() != 0) tryStartQueue();
+    }
+
+    /*
+     * Space ledger: every other active or queued download holds a reservation for the bytes it
+     * has yet to write, and a download only starts writing if the volume can hold its own bytes
+     * on top of those. Called from the download threads, so checks are serialized.
+     */
+    @Override
+    public synchronized boolean onReserveSpace(DlState state, File dir, long needed) {
+        long reserved = 0;
+        synchronized (DOWNLOADS) {
+            for (int q = 0; q < DOWNLOADS.size(); q++) {
+                DlState other = DOWNLOADS.valueAt(q);
+                if (other == state || !other.matchesFilter(DlState.FILTER_ACTIVE)) continue;
+                reserved += other.getBytesRemaining();
+            }
+        }
+        long avail = Utils.getAvailableSpace(dir);
+        Log.v(Config.LOG_TAG + "Service", "space for id=" + state.getId() + ": need " + needed +
+                ", reserved " + reserved + ", available " + avail);
+        if (needed + reserved >= avail) {
+            long freed = QuotaManager.getInstance(this).free(needed + reserved - avail + 1, getFilesInUse());
+            if (freed != 0) avail = Utils.getAvailableSpace(dir);
+        }
+        return needed + reserved < avail;
     }
 
     @Override
     public void onProgress(DlState state) {
+        countProgressMessage();
         updateStatusNotif(false);
-        saveState(false);
+        saveState(state, false);
     }
 
     @Override
     public void onPause(DlState state) {
         updateStatusNotif(true);
         cleanupFinish(state);
-        saveState(true);
+        saveState(state, true);
     }
 
     @Override
@@ -301,42 +417,196 @@ public class DownloadService extends Service implements DownloadListener {
         if (result != DownloadResult.CANCELLED && result != DownloadResult.FINISHED && state.getStatus() != DlState.STATUS_FAILED) {
             DOWNLOAD_QUEUE.add(state.getId());
         }
+        if (result == DownloadResult.RETRY_LATER) retryScheduler.schedule(state);
+        if (result == DownloadResult.FINISHED) cacheFinished(state);
         updateStatusNotif(true);
         cleanupFinish(state);
-        saveState(true);
+        saveState(state, true);
+        tryStartQueue();
     }
 
-    private void saveState(boolean force) {
-        if (System.currentTimeMillis() < minNextWriteUpdate && !force) return;
-        minNextWriteUpdate = System.currentTimeMillis() + WRITE_STATE_DELAY;
+    /* main-thread progress message rate, measured over PROGRESS_RATE_WINDOW while messages arrive */
+    private void countProgressMessage() {
+        long now = SystemClock.elapsedRealtime();
+        if (progressMsgCount == 0) progressWindowStart = now;
+        progressMsgCount++;
+        if (now - progressWindowStart >= PROGRESS_RATE_WINDOW) {
+            progressMsgRate = progressMsgCount * 1000f / (now - progressWindowStart);
+            Log.v(Config.LOG_TAG + "Service", "progress messages: " + progressMsgRate + "/s");
+            progressMsgCount = 0;
+        }
+    }
 
-        ObjectOutputStream os = null;
-        try {
-            os = new ObjectOutputStream(openFileOutput(STATE_STORE_NAME, 0));
-            os.writeInt(DOWNLOADS.size());
+    private void cacheFinished(DlState state) {
+        DownloadCache.getInstance(this).put(state.getTargetMd5(), state.getDestFile());
+        ArrayList<File> inUse = getFilesInUse();
+        inUse.add(state.getDestFile());
+        QuotaManager.getInstance(this).enforceAsync(inUse);
+    }
+
+    /*
+     * Files of every download that isn't finished, which must never be evicted or read as
+     * finished: its destination and, for a delta, the zip the patch is applied into.
+     */
+    @Override
+    public ArrayList<File> getFilesInUse() {
+        ArrayList<File> inUse = new ArrayList<File>();
+        synchronized (DOWNLOADS) {
             for (int q = 0; q < DOWNLOADS.size(); q++) {
-                os.writeInt(DOWNLOADS.keyAt(q));
-                os.writeObject(DOWNLOADS.valueAt(q));
+                DlState state = DOWNLOADS.valueAt(q);
+                if (state.getStatus() == DlState.STATUS_COMPLETED) continue;
+                inUse.add(state.getDestFile());
+                if (state.isDelta()) inUse.add(new File(Config.ROM_DL_PATH_FILE, state.getRomInfo().getDownloadFileName()));
             }
-            os.writeObject(DOWNLOAD_QUEUE);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (os != null) {
-                try {
-                    os.flush();
-                    os.close();
-                } catch (IOException e) { }
+        }
+        return inUse;
+    }
+
+    /*
+     * A forced save records the whole state of the download, otherwise just its progress.
+     * Once a download is finished and its task is gone it moves to the registry for good.
+     */
+    private void saveState(DlState state, boolean force) {
+        markChanged(state, !force);
+        if (force) {
+            registry.put(state);
+            if (state.isFinished() && DOWNLOAD_THREADS.get(state.getId()) == null) {
+                synchronized (DOWNLOADS) {
+                    DOWNLOADS.remove(state.getId());
+                }
+                DOWNLOAD_QUEUE.remove(Integer.valueOf(state.getId()));
+                journal.writeRemove(state.getId());
+            } else {
+                journal.writeState(state);
             }
+            journal.writeQueue(DOWNLOAD_QUEUE);
+        } else {
+            journal.writeProgress(state, WRITE_STATE_DELAY);
         }
+        if (journal.needsCompaction()) journal.compact(DOWNLOADS, DOWNLOAD_QUEUE);
+    }
+
+    private void markChanged(DlState state, boolean progress) {
+        synchronized (CHANGES) {
+            CHANGES.remove(state.getId());
+            CHANGES.put(state.getId(), ++changeSeq);
+            if (!progress) STATUS_CHANGES.put(state.getId(), changeSeq);
+        }
+        pushChange(state, progress);
+    }
+
+    /*
+     * Pushes a change to registered listeners. Status changes go out right away, progress at
+     * most every DL_PROGRESS_PUSH_DELAY per download. Dead listeners are dropped by the list.
+     */
+    private void pushChange(DlState state, boolean progress) {
+        synchronized (LISTENERS) {
+            long now = SystemClock.elapsedRealtime();
+            if (progress) {
+                Long last = PROGRESS_PUSHED.get(state.getId());
+                if (last != null && now - last < Config.DL_PROGRESS_PUSH_DELAY) return;
+            }
+
+            int n = LISTENERS.beginBroadcast();
+            try {
+                ProgressSnapshot snapshot = progress && n != 0 ? state.getSnapshot() : null;
+                for (int q = 0; q < n; q++) {
+                    try {
+                        if (progress) LISTENERS.getBroadcastItem(q).onProgress(snapshot);
+                        else LISTENERS.getBroadcastItem(q).onStatusChanged(state);
+                    } catch (RemoteException e) { }
+                }
+            } finally {
+                LISTENERS.finishBroadcast();
+            }
+
+            if (state.isFinished()) PROGRESS_PUSHED.remove(state.getId());
+            else if (n != 0) PROGRESS_PUSHED.put(state.getId(), now);
+        }
+    }
+
+    public void registerListener(IDownloadListener listener) {
+        if (listener != null) LISTENERS.register(listener);
+    }
+
+    public void unregisterListener(IDownloadListener listener) {
+        if (listener != null) LISTENERS.unregister(listener);
+    }
+
+    /* downloads changed after since that match filter, or a snapshot capped at limit on a reset */
+    public DlChanges getChanges(long since, int filter, int limit) {
+        DlChanges changes = new DlChanges();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ArrayList<Integer> progressIds = new ArrayList<Integer>();
+        synchronized (CHANGES) {
+            changes.seq = changeSeq;
+            changes.reset = since < changeFloor || since > changeSeq;
+            if (!changes.reset) {
+                for (Map.Entry<Integer, Long> change : CHANGES.entrySet()) {
+                    if (change.getValue() <= since) continue;
+                    Long statusSeq = STATUS_CHANGES.get(change.getKey());
+                    if (statusSeq == null || statusSeq > since) ids.add(change.getKey());
+                    else progressIds.add(change.getKey());
+                }
+            }
+        }
+        if (changes.reset) {
+            getDownloads(changes.states, filter, limit);
+            return changes;
+        }
+
+        int numRemoved = 0;
+        int[] removed = new int[ids.size()];
+        for (int id : ids) {
+            DlState state = getDownload(id);
+            if (state != null && state.matchesFilter(filter)) changes.states.add(state);
+            else removed[numRemoved++] = id;
+        }
+        changes.removed = new int[numRemoved];
+        System.arraycopy(removed, 0, changes.removed, 0, numRemoved);
+
+        int numProgress = 0;
+        ProgressSnapshot[] progress = new ProgressSnapshot[progressIds.size()];
+        for (int id : progressIds) {
+            DlState state = DOWNLOADS.get(id);
+            if (state != null && state.matchesFilter(filter)) progress[numProgress++] = state.getSnapshot();
+        }
+        changes.progress = new ProgressSnapshot[numProgress];
+        System.arraycopy(progress, 0, changes.progress, 0, numProgress);
+        return changes;
+    }
+
+    /* progress of many downloads in one call, null for unknown ids */
+    public ProgressSnapshot[] getProgress(int[] ids) {
+        ProgressSnapshot[] snapshots = new ProgressSnapshot[ids.length];
+        for (int q = 0; q < ids.length; q++) {
+            DlState state = getDownload(ids[q]);
+            if (state != null) snapshots[q] = state.getSnapshot();
+        }
+        return snapshots;
     }
 
-    @SuppressWarnings("unchecked")
     private void loadState() {
         DOWNLOADS.clear();
         DOWNLOAD_QUEUE.clear();
         DOWNLOAD_THREADS.clear();
 
+        boolean legacy = !journal.load(DOWNLOADS, DOWNLOAD_QUEUE);
+        if (legacy) loadLegacyState();
+        for (int q = DOWNLOADS.size() - 1; q >= 0; q--) {
+            DlState state = DOWNLOADS.valueAt(q);
+            if (!state.isFinished()) continue;
+            registry.put(state);
+            DOWNLOADS.removeAt(q);
+            DOWNLOAD_QUEUE.remove(Integer.valueOf(state.getId()));
+        }
+        // starts the journal over from a clean snapshot, without any torn tail
+        if (journal.compact(DOWNLOADS, DOWNLOAD_QUEUE) && legacy) deleteFile(STATE_STORE_NAME);
+    }
+
+    /* the single ObjectOutputStream file written before the journal */
+    @SuppressWarnings("unchecked")
+    private void loadLegacyState() {
         ObjectInputStream is = null;
         try {
             is = new ObjectInputStream(openFileInput(STATE_STORE_NAME));
@@ -357,65 +627,236 @@ public class DownloadService extends Service implements DownloadListener {
         }
     }
 
-    public int queueDownload(RomInfo info) {
-        return queueDownload(new DlState(info));
+    public int queueDownload(RomInfo info, int priority) {
+        DlState state = new DlState(info);
+        if (info.getDeltaBaseFile() != null) {
+            Log.v(Config.LOG_TAG + "Service", "using delta from " + info.deltaFrom);
+            state.setDelta(true);
+        }
+        state.setPriority(priority);
+        return queueDownload(state);
     }
 
-    public int queueDownload(KernelInfo info) {
-        return queueDownload(new DlState(info));
+    public int queueDownload(KernelInfo info, int priority) {
+        DlState state = new DlState(info);
+        state.setPriority(priority);
+        return queueDownload(state);
     }
 
     private int queueDownload(DlState state) {
+        DlState existing = findDuplicate(state.getTargetMd5());
+        if (existing != null) {
+            Log.v(Config.LOG_TAG + "Service", "attaching to download id=" + existing.getId());
+            if (state.getPriority() < existing.getPriority()) {
+                existing.setPriority(state.getPriority());
+                saveState(existing, true);
+                tryStartQueue();
+            }
+            return existing.getId();
+        }
+
         int id = state.hashCode();
-        Log.v(Config.LOG_TAG + "Service", "queuing download id=" + id);
+        Log.v(Config.LOG_TAG + "Service", "queuing download id=" + id + ", priority=" + state.getPriority());
         state.setId(id);
         state.setStatus(DlState.STATUS_QUEUED);
-        DOWNLOADS.put(id, state);
+        synchronized (DOWNLOADS) {
+            DOWNLOADS.put(id, state);
+        }
+
+        File cached = DownloadCache.getInstance(this).get(state.getTargetMd5());
+        if (cached != null && attachCached(state, cached)) {
+            onFinish(state, state.setResult(DownloadResult.FINISHED));
+            return id;
+        }
+
+        state.setQueuedAt(System.currentTimeMillis());
         DOWNLOAD_QUEUE.add(id);
-        saveState(true);
+        saveState(state, true);
         tryStartQueue();
         return id;
     }
 
+    /* a build with the same md5 that is queued, running, or finished and still on disk */
+    private DlState findDuplicate(String md5) {
+        if (md5 == null || md5.length() == 0) return null;
+        synchronized (DOWNLOADS) {
+            for (int q = 0; q < DOWNLOADS.size(); q++) {
+                DlState state = DOWNLOADS.valueAt(q);
+                if (!md5.equalsIgnoreCase(state.getTargetMd5())) continue;
+                int status = state.getStatus();
+                if (state.matchesFilter(DlState.FILTER_ACTIVE) || status == DlState.STATUS_PAUSED_USER ||
+                        status == DlState.STATUS_PAUSED_SYSTEM) return state;
+                if (status == DlState.STATUS_COMPLETED && state.getDestFile().isFile()) return state;
+            }
+        }
+        DlState done = registry.findCompleted(md5);
+        if (done != null && done.getDestFile().isFile()) return done;
+        return null;
+    }
+
+    /* moves a cached copy of the build into place for state, marking it finished */
+    private boolean attachCached(DlState state, File cached) {
+        File dest = state.getDestFile();
+        if (!cached.equals(dest)) {
+            if (dest.exists()) dest.delete();
+            if (!cached.renameTo(dest)) return false;
+            DownloadCache.getInstance(this).put(state.getTargetMd5(), dest);
+        }
+        Log.v(Config.LOG_TAG + "Service", "reusing cached " + cached + " for id=" + state.getId());
+        state.setDelta(false);
+        state.setTotalSize(dest.length());
+        state.setTotalDone(dest.length());
+        state.setStatus(DlState.STATUS_COMPLETED);
+        return true;
+    }
+
+    /*
+     * Starts queued downloads until cfg.getMaxParallelDl() are running. Each pass over the
+     * queue starts at most one download per host, so hosts are interleaved, and a download
+     * whose host is already at cfg.getMaxHostConnections() is skipped rather than blocking
+     * the rest of the queue. A new download reserves at most cfg.getDlSegments() of the
+     * host's connections and hands back what it doesn't open, see onConnectionsReleased.
+     * Downloads waiting to retry are skipped until they are due.
+     * The queue is taken in order of priority class, see DlState.getEffectivePriority.
+     */
     private void tryStartQueue() {
-        //TODO if (cfg.getNoParallelDl() && DOWNLOAD_THREADS.size() != 0) return;
-        if (DOWNLOAD_THREADS.size() != 0) return;
+        boolean started = true;
+        while (started && DOWNLOAD_THREADS.size() < cfg.getMaxParallelDl()) {
+            started = false;
+            ArrayList<String> passHosts = new ArrayList<String>();
 
-        for (Iterator<Integer> it = DOWNLOAD_QUEUE.iterator(); it.hasNext(); ) {
-            int id = it.next();
-            DlState state = getState(id);
-            int status = state.getStatus();
-            if (status == DlState.STATUS_PAUSED_USER || status == DlState.STATUS_CANCELLED_USER) continue;
+            for (int id : getQueueByPriority()) {
+                if (DOWNLOAD_THREADS.size() >= cfg.getMaxParallelDl()) break;
 
-            int netCheck = checkNetwork(state);
-            if (netCheck == NETWORK_OK) {
-                state.setStatus(DlState.STATUS_STARTING);
-                DownloadTask task = new DownloadTask(state, this, this);
-                DOWNLOAD_THREADS.put(id, task);
+                DlState state = getState(id);
+                if (!isStartable(state)) continue;
 
-                updateStatusNotif(true);
+                String host = getHost(state);
+                if (passHosts.contains(host)) continue;
+                int hostFree = cfg.getMaxHostConnections() - getHostConnections(host);
+                if (hostFree <= 0) continue;
 
-                task.execute();
-                it.remove();
+                int netCheck = checkNetwork(state);
+                if (netCheck == NETWORK_OK) {
+                    state.setStatus(DlState.STATUS_STARTING);
+                    DownloadTask task = new DownloadTask(state, this, this);
+                    task.setMaxConnections(Math.min(hostFree, cfg.getDlSegments()));
+                    DOWNLOAD_THREADS.put(id, task);
 
-                //TODO if (cfg.getNoParallelDl()) break;
-                break;
-            } else {
-                switch (netCheck) {
-                case NETWORK_NO_WIFI:
-                case NETWORK_SIZE_EXCEEDED:
-                    state.setStatus(DlState.STATUS_PAUSED_FOR_WIFI);
-                    break;
-                case NETWORK_NOT_CONNECTED:
-                    state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
-                    break;
-                default:
-                    state.setStatus(DlState.STATUS_PAUSED_SYSTEM);
+                    updateStatusNotif(true);
+
+                    executeTask(task);
+                    DOWNLOAD_QUEUE.remove(Integer.valueOf(id));
+
+                    passHosts.add(host);
+                    started = true;
+                } else {
+                    switch (netCheck) {
+                    case NETWORK_NO_WIFI:
+                    case NETWORK_SIZE_EXCEEDED:
+                        state.setStatus(DlState.STATUS_PAUSED_FOR_WIFI);
+                        break;
+                    case NETWORK_NOT_CONNECTED:
+                        state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                        break;
+                    default:
+                        state.setStatus(DlState.STATUS_PAUSED_SYSTEM);
+                    }
+
+                    updateStatusNotif(true);
                 }
+            }
+        }
+        preemptForQueue();
+        retryScheduler.rearm(DOWNLOADS);
+    }
+
+    private boolean isStartable(DlState state) {
+        int status = state.getStatus();
+        if (status == DlState.STATUS_PAUSED_USER || status == DlState.STATUS_CANCELLED_USER) return false;
+        if (status == DlState.STATUS_PAUSED_RETRY && !retryScheduler.isDue(state)) return false;
+        return DOWNLOAD_THREADS.get(state.getId()) == null;
+    }
+
+    /* stable, so downloads of the same class keep their queue order */
+    private ArrayList<Integer> getQueueByPriority() {
+        final long now = System.currentTimeMillis();
+        ArrayList<Integer> order = new ArrayList<Integer>(DOWNLOAD_QUEUE);
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return getState(lhs).getEffectivePriority(now) - getState(rhs).getEffectivePriority(now);
+            }
+        });
+        return order;
+    }
+
+    /*
+     * With every slot taken, the best waiting download pauses the running download of the
+     * lowest class below its own. That one stops at its next checkpoint, goes back in the
+     * queue as it is and resumes from there once a slot frees up. Running downloads age
+     * like queued ones, so one that has waited long enough can't be preempted again.
+     */
+    private void preemptForQueue() {
+        if (DOWNLOAD_THREADS.size() < cfg.getMaxParallelDl()) return;
+        for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
+            if (DOWNLOAD_THREADS.valueAt(q).isPausing()) return;
+        }
+
+        long now = System.currentTimeMillis();
+        DlState waiting = null;
+        for (int id : getQueueByPriority()) {
+            DlState state = getState(id);
+            if (isStartable(state) && checkNetwork(state) == NETWORK_OK) {
+                waiting = state;
+                break;
+            }
+        }
+        if (waiting == null) return;
 
-                updateStatusNotif(true);
+        String host = getHost(waiting);
+        boolean hostFree = getHostConnections(host) < cfg.getMaxHostConnections();
+        DownloadTask victim = null;
+        int victimPriority = waiting.getEffectivePriority(now);
+        for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
+            DownloadTask task = DOWNLOAD_THREADS.valueAt(q);
+            DlState state = task.getState();
+            if (!hostFree && !host.equals(getHost(state))) continue;
+            if (state.getEffectivePriority(now) > victimPriority) {
+                victim = task;
+                victimPriority = state.getEffectivePriority(now);
             }
         }
+        if (victim == null) return;
+
+        Log.v(Config.LOG_TAG + "Service", "preempting id=" + victim.getState().getId() + " for id=" + waiting.getId());
+        victim.getState().setStatus(DlState.STATUS_QUEUED);
+        victim.pause(DlState.STATUS_QUEUED);
+        updateStatusNotif(true);
+    }
+
+    @TargetApi(11)
+    private static void executeTask(DownloadTask task) {
+        // on honeycomb+ execute() is serialized, which would keep downloads from running in parallel
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
+    }
+
+    private static String getHost(DlState state) {
+        String host = Uri.parse(state.getSourceURL()).getHost();
+        return host == null ? "" : host.toLowerCase();
+    }
+
+    private int getHostConnections(String host) {
+        int connections = 0;
+        for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
+            DownloadTask task = DOWNLOAD_THREADS.valueAt(q);
+            if (host.equals(getHost(task.getState()))) connections += task.getConnections();
+        }
+        return connections;
     }
 
     private void cleanupFinish(DlState state) {
@@ -438,6 +879,7 @@ public class DownloadService extends Service implements DownloadListener {
             DlState state = null;
             if (DOWNLOAD_THREADS.size() == 0) {
                 if (DOWNLOAD_QUEUE.size() == 0) {
+                    if (DOWNLOADS.size() == 0) return;
                     state = DOWNLOADS.valueAt(DOWNLOADS.size() - 1);
                 } else {
                     state = getState(DOWNLOAD_QUEUE.get(0));
@@ -523,7 +965,9 @@ public class DownloadService extends Service implements DownloadListener {
             }
 
             if (status == DlState.STATUS_RUNNING) {
-                builder.setContentText(state.getProgressStr(this));
+                String rate = state.getRateStr(this);
+                builder.setContentText(rate == null ? state.getProgressStr(this) :
+                        getString(R.string.notif_downloading_progress_rate, state.getProgressStr(this), rate));
             } else {
                 int subtext = 0;
                 switch (status) {
@@ -532,7 +976,8 @@ public class DownloadService extends Service implements DownloadListener {
                     subtext = R.string.downloads_queued;
                     break;
                 case DlState.STATUS_FAILED:
-                    subtext = R.string.downloads_failed_unknown;
+                    subtext = state.getResult() == DownloadResult.FAILED_CHECKSUM_MISMATCH ?
+                            R.string.downloads_failed_checksum : R.string.downloads_failed_unknown;
                     break;
                 case DlState.STATUS_PAUSED_FOR_DATA:
                     subtext = R.string.downloads_paused_network;
@@ -557,7 +1002,51 @@ public class DownloadService extends Service implements DownloadListener {
                 builder.setContentText(getString(subtext));
             }
         } else {
-            //TODO multiple download notif
+            long totalSize = 0;
+            long totalDone = 0;
+            boolean sizeKnown = true;
+            NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+            for (int q = 0; q < DOWNLOAD_THREADS.size(); q++) {
+                DlState state = DOWNLOAD_THREADS.valueAt(q).getState();
+                if (state.getTotalSize() == 0) sizeKnown = false;
+                totalSize += state.getTotalSize();
+                totalDone += state.getTotalDone();
+
+                String progress = state.getStatus() == DlState.STATUS_RUNNING ?
+                        state.getProgressStr(this) : getString(R.string.downloads_queued);
+                style.addLine(getString(R.string.notif_downloading_multi_line, state.getName(), progress));
+            }
+
+            String title = getString(R.string.notif_downloading_multi, DOWNLOAD_THREADS.size());
+            builder.setContentTitle(title);
+            builder.setTicker(getString(R.string.notif_downloading));
+            builder.setStyle(style.setBigContentTitle(title));
+            builder.setOngoing(true);
+            builder.setSmallIcon(android.R.drawable.stat_sys_download);
+
+            if (sizeKnown && totalSize != 0) {
+                builder.setProgress(1000, (int) (1000 * totalDone / totalSize), false);
+                builder.setContentInfo(getString(R.string.downloads_pct_progress, Math.round(100.0f * totalDone / totalSize)));
+            } else {
+                builder.setProgress(0, 0, true);
+            }
+            if (DOWNLOAD_QUEUE.size() != 0) {
+                builder.setContentText(getString(R.string.notif_downloading_multi_queued, DOWNLOAD_QUEUE.size()));
+            }
+
+            Intent i = new Intent(this, DownloadsActivity.class);
+            i.putExtra(DownloadsActivity.EXTRA_GOTO_TYPE, DownloadsActivity.GOTO_TYPE_PENDING);
+            builder.setContentIntent(PendingIntent.getActivity(this, 2, i, 0));
+
+            i = new Intent(this, DownloadReceiver.class);
+            i.setAction(SERVICE_ACTION);
+            i.putExtra(EXTRA_CMD, CMD_PAUSE);
+            builder.addAction(0, getString(R.string.notif_pause_all), PendingIntent.getBroadcast(this, 9, i, PendingIntent.FLAG_UPDATE_CURRENT));
+
+            i = new Intent(this, DownloadReceiver.class);
+            i.setAction(SERVICE_ACTION);
+            i.putExtra(EXTRA_CMD, CMD_CANCEL);
+            builder.addAction(0, getString(R.string.notif_cancel_all), PendingIntent.getBroadcast(this, 10, i, PendingIntent.FLAG_UPDATE_CURRENT));
         }
 
         nm.notify(Config.DL_STATUS_NOTIF_ID, builder.build());
@@ -572,7 +1061,7 @@ public class DownloadService extends Service implements DownloadListener {
         state.setStatus(DlState.STATUS_CANCELLED_USER);
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state, true);
 
         DownloadTask task = DOWNLOAD_THREADS.get(id);
         if (task == null) return;
@@ -586,7 +1075,7 @@ public class DownloadService extends Service implements DownloadListener {
         state.setStatus(DlState.STATUS_PAUSED_USER);
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state, true);
 
         DownloadTask task = DOWNLOAD_THREADS.get(id);
         if (task == null) return;
@@ -598,16 +1087,17 @@ public class DownloadService extends Service implements DownloadListener {
         if (state == null) return;
         if (state.getStatus() != DlState.STATUS_PAUSED_USER) return;
         state.setStatus(DlState.STATUS_QUEUED);
+        state.setQueuedAt(System.currentTimeMillis());
         DOWNLOAD_QUEUE.add(id);
 
         updateStatusNotif(true);
-        saveState(true);
+        saveState(state, true);
 
         tryStartQueue();
     }
 
     public void retry(int id) {
-        DlState state = DOWNLOADS.get(id);
+        DlState state = getDownload(id);
         if (state == null) return;
 
         int status = state.getStatus();
@@ -615,10 +1105,14 @@ public class DownloadService extends Service implements DownloadListener {
                 status == DlState.STATUS_COMPLETED ||
                 status == DlState.STATUS_FAILED) {
             state.resetState();
+            state.setQueuedAt(System.currentTimeMillis());
+            synchronized (DOWNLOADS) {
+                DOWNLOADS.put(id, state);
+            }
             DOWNLOAD_QUEUE.add(id);
 
             updateStatusNotif(true);
-            saveState(true);
+            saveState(state, true);
 
             tryStartQueue();
         }
@@ -636,32 +1130,64 @@ public class DownloadService extends Service implements DownloadListener {
         return getState(id).getTotalDone();
     }
 
+    public long getRate(int id) {
+        return getState(id).getRateEstimator().getRate();
+    }
+
+    public long getAverageRate(int id) {
+        return getState(id).getRateEstimator().getAverageRate();
+    }
+
+    public long getEta(int id) {
+        return getState(id).getEta();
+    }
+
     private DlState getState(int id) {
-        DlState state = DOWNLOADS.get(id);
+        DlState state = getDownload(id);
         if (state == null) throw new InvalidDownloadException();
         return state;
     }
 
     public DlState getDownload(int id) {
-        return DOWNLOADS.get(id);
+        DlState state = DOWNLOADS.get(id);
+        return state == null ? registry.get(id) : state;
     }
 
     public void getDownloads(List<DlState> list) {
-        getDownloads(list, 0);
+        getDownloads(list, 0, 0);
     }
 
-    public void getDownloads(List<DlState> list, int filter) {
+    /* unfinished downloads from memory, then finished ones from the registry, newest first up to limit */
+    public void getDownloads(List<DlState> list, int filter, int limit) {
         list.clear();
-        for (int q = 0; q < DOWNLOADS.size(); q++) {
-            DlState state = DOWNLOADS.valueAt(q);
-            if (state.matchesFilter(filter)) list.add(state);
+        synchronized (DOWNLOADS) {
+            for (int q = 0; q < DOWNLOADS.size(); q++) {
+                DlState state = DOWNLOADS.valueAt(q);
+                if (state.matchesFilter(filter)) list.add(state);
+            }
+        }
+
+        int numFinished = 0;
+        int[] finished = new int[DlState.FINISHED_STATUSES.length];
+        for (int status : DlState.FINISHED_STATUSES) {
+            if (DlState.matchesFilter(status, filter)) finished[numFinished++] = status;
+        }
+        int[] statuses = new int[numFinished];
+        System.arraycopy(finished, 0, statuses, 0, numFinished);
+        registry.getByStatus(list, statuses, limit);
+    }
+
+    public void getDownloadsByName(List<DlState> list, int type, String name) {
+        list.clear();
+        registry.getByName(list, type, name);
+        for (int q = 0; q < list.size(); q++) {
+            DlState live = DOWNLOADS.get(list.get(q).getId());
+            if (live != null) list.set(q, live);
         }
     }
 
     @TargetApi(11)
     private int checkNetwork(DlState state) {
-        isNetStateDirty = false;
-
         ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
         NetworkInfo ni = cm.getActiveNetworkInfo();
 
@@ -690,13 +1216,13 @@ public class DownloadService extends Service implements DownloadListener {
         }
 
         @Override
-        public int queueRomDownload(RomInfo info) {
-            return service.get().queueDownload(info);
+        public int queueRomDownload(RomInfo info, int priority) {
+            return service.get().queueDownload(info, priority);
         }
 
         @Override
-        public int queueKernelDownload(KernelInfo info) {
-            return service.get().queueDownload(info);
+        public int queueKernelDownload(KernelInfo info, int priority) {
+            return service.get().queueDownload(info, priority);
         }
 
         @Override
@@ -714,6 +1240,21 @@ public class DownloadService extends Service implements DownloadListener {
             return service.get().getDoneSize(id);
         }
 
+        @Override
+        public long getRate(int id) {
+            return service.get().getRate(id);
+        }
+
+        @Override
+        public long getAverageRate(int id) {
+            return service.get().getAverageRate(id);
+        }
+
+        @Override
+        public long getEta(int id) {
+            return service.get().getEta(id);
+        }
+
         @Override
         public void cancel(int id) {
             service.get().cancel(id);
@@ -741,7 +1282,37 @@ public class DownloadService extends Service implements DownloadListener {
 
         @Override
         public void getDownloadsFilt(List<DlState> list, int filter) {
-            service.get().getDownloads(list, filter);
+            service.get().getDownloads(list, filter, 0);
+        }
+
+        @Override
+        public void getRecentDownloads(List<DlState> list, int filter, int limit) {
+            service.get().getDownloads(list, filter, limit);
+        }
+
+        @Override
+        public void getDownloadsByName(List<DlState> list, int type, String name) {
+            service.get().getDownloadsByName(list, type, name);
+        }
+
+        @Override
+        public DlChanges getDownloadChanges(long since, int filter, int limit) {
+            return service.get().getChanges(since, filter, limit);
+        }
+
+        @Override
+        public ProgressSnapshot[] getProgress(int[] ids) {
+            return service.get().getProgress(ids);
+        }
+
+        @Override
+        public void registerListener(IDownloadListener listener) {
+            service.get().registerListener(listener);
+        }
+
+        @Override
+        public void unregisterListener(IDownloadListener listener) {
+            service.get().unregisterListener(listener);
         }
 
         @Override
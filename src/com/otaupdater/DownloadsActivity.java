@@ -50,8 +50,11 @@ import com.actionbarsherlock.view.MenuItem;
 import com.otaupdater.DownloadService.BindUtil;
 import com.otaupdater.DownloadService.BindUtil.Token;
 import com.otaupdater.utils.Config;
+import com.otaupdater.utils.DlChanges;
 import com.otaupdater.utils.DlState;
 import com.otaupdater.utils.DownloadDialogCallback;
+import com.otaupdater.utils.DownloadTask.DownloadResult;
+import com.otaupdater.utils.ProgressSnapshot;
 
 public class DownloadsActivity extends SherlockListActivity implements
         ActionBar.OnNavigationListener, ServiceConnection, DownloadDialogCallback {
@@ -65,6 +68,7 @@ public class DownloadsActivity extends SherlockListActivity implements
     private ArrayAdapter<String> fileAdapter = null;
 
     private ArrayList<DlState> dlList = new ArrayList<DlState>();
+    private long dlSeq = 0;
     private DownloadAdapter dlAdapter = null;
 
     private final ArrayList<Dialog> dlgs = new ArrayList<Dialog>();
@@ -75,7 +79,6 @@ public class DownloadsActivity extends SherlockListActivity implements
 
     private int state = 0;
 
-    private static final int REFRESH_DELAY = 1000;
     private final Handler REFRESH_HANDLER = new RefreshHandler(this);
     private static class RefreshHandler extends Handler {
         private WeakReference<DownloadsActivity> downloadsAct;
@@ -86,13 +89,31 @@ public class DownloadsActivity extends SherlockListActivity implements
 
         @Override
         public void handleMessage(Message msg) {
-            downloadsAct.get().updateFileList();
+            if (msg.obj instanceof DlState) downloadsAct.get().onDownloadChanged((DlState) msg.obj);
+            else if (msg.obj instanceof ProgressSnapshot) downloadsAct.get().onProgressChanged((ProgressSnapshot) msg.obj);
+            else downloadsAct.get().updateFileList();
+        }
+    };
+
+    /* called on a binder thread, the list is only touched from the handler */
+    private final IDownloadListener listener = new IDownloadListener.Stub() {
+        @Override
+        public void onStatusChanged(DlState dlState) {
+            REFRESH_HANDLER.obtainMessage(0, dlState).sendToTarget();
+        }
+
+        @Override
+        public void onProgress(ProgressSnapshot snapshot) {
+            REFRESH_HANDLER.obtainMessage(0, snapshot).sendToTarget();
         }
     };
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder stub) {
         service = IDownloadService.Stub.asInterface(stub);
+        try {
+            service.registerListener(listener);
+        } catch (RemoteException e) { }
         updateFileList();
 
         if (downloadDlgDlID != null) DownloadsActivity.showDownloadingDialog(this, service, token, downloadDlgDlID, this);
@@ -101,6 +122,7 @@ public class DownloadsActivity extends SherlockListActivity implements
     @Override
     public void onServiceDisconnected(ComponentName name) {
         DownloadsActivity.this.service = null;
+        dlSeq = 0;
         updateFileList();
     }
 
@@ -142,11 +164,21 @@ public class DownloadsActivity extends SherlockListActivity implements
     @Override
     protected void onResume() {
         super.onResume();
+        if (service != null) {
+            try {
+                service.registerListener(listener);
+            } catch (RemoteException e) { }
+        }
         updateFileList();
     }
 
     @Override
     protected void onPause() {
+        if (service != null) {
+            try {
+                service.unregisterListener(listener);
+            } catch (RemoteException e) { }
+        }
         REFRESH_HANDLER.removeCallbacksAndMessages(null);
         for (Dialog dlg : dlgs) {
             if (dlg.isShowing()) dlg.dismiss();
@@ -173,6 +205,7 @@ public class DownloadsActivity extends SherlockListActivity implements
     @Override
     public boolean onNavigationItemSelected(int itemPosition, long itemId) {
         state = itemPosition;
+        dlSeq = 0;
         ((TextView) getListView().getEmptyView()).setText(
                 getResources().getStringArray(R.array.download_types_empty)[itemPosition]);
         updateFileList();
@@ -221,17 +254,19 @@ public class DownloadsActivity extends SherlockListActivity implements
 
     private void updateFileList() {
         if (state < 2) {
-            dlList.clear();
+            boolean changed = true;
             if (service != null) {
                 try {
-                    int filter = 0;
-                    if (state == 0) {
-                        filter = DlState.FILTER_ACTIVE | DlState.FILTER_PAUSED;
-                    } else if (state == 1) {
-                        filter = DlState.FILTER_COMPLETED | DlState.FILTER_CANCELLED | DlState.FILTER_FAILED;
-                    }
-                    service.getDownloadsFilt(dlList, filter);
-                } catch (RemoteException e) { }
+                    DlChanges changes = service.getDownloadChanges(dlSeq, getListFilter(), getListLimit());
+                    changes.apply(dlList, getListLimit());
+                    changed = !changes.isEmpty();
+                    dlSeq = changes.seq;
+                } catch (RemoteException e) {
+                    dlList.clear();
+                    dlSeq = 0;
+                }
+            } else {
+                dlList.clear();
             }
 
             if (dlAdapter == null) {
@@ -242,11 +277,9 @@ public class DownloadsActivity extends SherlockListActivity implements
                     fileList.clear();
                     fileAdapter = null;
                 }
-            } else {
+            } else if (changed) {
                 dlAdapter.notifyDataSetChanged();
             }
-
-            REFRESH_HANDLER.sendMessageDelayed(REFRESH_HANDLER.obtainMessage(), REFRESH_DELAY);
         } else {
             File dir = state == 2 ? Config.ROM_DL_PATH_FILE : Config.KERNEL_DL_PATH_FILE;
             File[] files = dir.listFiles();
@@ -272,6 +305,35 @@ public class DownloadsActivity extends SherlockListActivity implements
         }
     }
 
+    /* merges a pushed state into the list without asking the service for anything */
+    private void onDownloadChanged(DlState dlState) {
+        if (state >= 2 || dlAdapter == null) return;
+
+        DlChanges changes = new DlChanges();
+        if (dlState.matchesFilter(getListFilter())) changes.states.add(dlState);
+        else changes.removed = new int[] { dlState.getId() };
+        changes.apply(dlList, getListLimit());
+        dlAdapter.notifyDataSetChanged();
+    }
+
+    private void onProgressChanged(ProgressSnapshot snapshot) {
+        if (state >= 2 || dlAdapter == null) return;
+
+        DlChanges changes = new DlChanges();
+        changes.progress = new ProgressSnapshot[] { snapshot };
+        changes.apply(dlList, getListLimit());
+        dlAdapter.notifyDataSetChanged();
+    }
+
+    private int getListFilter() {
+        if (state == 1) return DlState.FILTER_COMPLETED | DlState.FILTER_CANCELLED | DlState.FILTER_FAILED;
+        return DlState.FILTER_ACTIVE | DlState.FILTER_PAUSED;
+    }
+
+    private int getListLimit() {
+        return state == 1 ? Config.DL_RECENT_LIMIT : 0;
+    }
+
     @Override
     public void onDialogShown(Dialog dlg) {
         dlgs.add(dlg);
@@ -349,7 +411,13 @@ public class DownloadsActivity extends SherlockListActivity implements
                 }
                 bytesView.setVisibility(View.VISIBLE);
                 bar.setVisibility(View.VISIBLE);
-                subtxtView.setVisibility(View.GONE);
+                String rate = state.getRateStr(DownloadsActivity.this);
+                if (rate == null) {
+                    subtxtView.setVisibility(View.GONE);
+                } else {
+                    subtxtView.setText(rate);
+                    subtxtView.setVisibility(View.VISIBLE);
+                }
             } else {
                 if (status == DlState.STATUS_QUEUED || status == DlState.STATUS_STARTING) {
                     bar.setIndeterminate(true);
@@ -372,7 +440,8 @@ public class DownloadsActivity extends SherlockListActivity implements
                     subtext = R.string.downloads_queued;
                     break;
                 case DlState.STATUS_FAILED:
-                    subtext = R.string.downloads_failed_unknown;
+                    subtext = state.getResult() == DownloadResult.FAILED_CHECKSUM_MISMATCH ?
+                            R.string.downloads_failed_checksum : R.string.downloads_failed_unknown;
                     //TODO failed explanation
                     break;
                 case DlState.STATUS_PAUSED_FOR_DATA:
@@ -465,12 +534,20 @@ public class DownloadsActivity extends SherlockListActivity implements
         final AlertDialog dlg = builder.create();
 
         final Handler REFRESH_HANDLER = new Handler() {
+            /* fetched in full once, then kept current by pushed states and snapshots */
+            private DlState state = null;
+
             @Override
             public void handleMessage(Message msg) {
-                DlState state = null;
-                try {
-                    state = service.getDownload(dlID);
-                } catch (RemoteException e) { }
+                if (msg.obj instanceof DlState) {
+                    state = (DlState) msg.obj;
+                } else if (msg.obj instanceof ProgressSnapshot) {
+                    if (state != null) state.applySnapshot((ProgressSnapshot) msg.obj);
+                } else {
+                    try {
+                        state = service.getDownload(dlID);
+                    } catch (RemoteException e) { }
+                }
 
                 if (state == null) return;
 
@@ -526,7 +603,13 @@ public class DownloadsActivity extends SherlockListActivity implements
                 }
 
                 if (status == DlState.STATUS_RUNNING) {
-                    subtextView.setVisibility(View.GONE);
+                    String rate = state.getRateStr(ctx);
+                    if (rate == null) {
+                        subtextView.setVisibility(View.GONE);
+                    } else {
+                        subtextView.setText(rate);
+                        subtextView.setVisibility(View.VISIBLE);
+                    }
                 } else {
                     int subtext = 0;
                     switch (status) {
@@ -535,7 +618,8 @@ public class DownloadsActivity extends SherlockListActivity implements
                         subtext = R.string.downloads_queued;
                         break;
                     case DlState.STATUS_FAILED:
-                        subtext = R.string.downloads_failed_unknown;
+                        subtext = state.getResult() == DownloadResult.FAILED_CHECKSUM_MISMATCH ?
+                                R.string.downloads_failed_checksum : R.string.downloads_failed_unknown;
                         break;
                     case DlState.STATUS_PAUSED_FOR_DATA:
                         subtext = R.string.downloads_paused_network;
@@ -560,8 +644,18 @@ public class DownloadsActivity extends SherlockListActivity implements
                     subtextView.setText(ctx.getString(subtext));
                     subtextView.setVisibility(View.VISIBLE);
                 }
+            }
+        };
+
+        final IDownloadListener listener = new IDownloadListener.Stub() {
+            @Override
+            public void onStatusChanged(DlState state) {
+                if (state.getId() == dlID) REFRESH_HANDLER.obtainMessage(0, state).sendToTarget();
+            }
 
-                this.sendMessageDelayed(this.obtainMessage(), REFRESH_DELAY);
+            @Override
+            public void onProgress(ProgressSnapshot snapshot) {
+                if (snapshot.id == dlID) REFRESH_HANDLER.obtainMessage(0, snapshot).sendToTarget();
             }
         };
 
@@ -619,6 +713,9 @@ public class DownloadsActivity extends SherlockListActivity implements
 
                 dlg.getButton(DialogInterface.BUTTON_NEUTRAL).setVisibility(initStatus == DlState.STATUS_RUNNING || initStatus == DlState.STATUS_PAUSED_USER ? View.VISIBLE : View.GONE);
 
+                try {
+                    service.registerListener(listener);
+                } catch (RemoteException e) { }
                 REFRESH_HANDLER.sendMessage(REFRESH_HANDLER.obtainMessage());
                 if (callback != null) {
                     callback.onDialogShown(dlg);
@@ -629,6 +726,9 @@ public class DownloadsActivity extends SherlockListActivity implements
         dlg.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialog) {
+                try {
+                    service.unregisterListener(listener);
+                } catch (RemoteException e) { }
                 REFRESH_HANDLER.removeCallbacksAndMessages(null);
                 if (callback != null) {
                     callback.onDialogClosed(dlg);
@@ -22,7 +22,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 
 import android.content.Context;
@@ -31,9 +30,11 @@ import android.util.Log;
 
 import com.google.android.gcm.GCMBaseIntentService;
 import com.otaupdater.utils.Config;
+import com.otaupdater.utils.DlState;
 import com.otaupdater.utils.KernelInfo;
 import com.otaupdater.utils.PropUtils;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.SharedHttpClient;
 import com.otaupdater.utils.Utils;
 
 public class GCMIntentService extends GCMBaseIntentService {
@@ -73,7 +74,7 @@ public class GCMIntentService extends GCMBaseIntentService {
                 Log.v(Config.LOG_TAG + "GCM", "got rom GCM message, notif not shown");
             }
 
-            if (cfg.hasValidProKey() && cfg.getAutoDlState()) info.downloadFileSilent(ctx);
+            if (cfg.hasValidProKey() && cfg.getAutoDlState()) info.downloadFileSilent(ctx, DlState.PRIORITY_AUTO);
         } else if (msgType.equals("kernel")) {
             if (!PropUtils.isKernelOtaEnabled()) return;
 
@@ -94,7 +95,7 @@ public class GCMIntentService extends GCMBaseIntentService {
                 Log.v(Config.LOG_TAG + "GCM", "got kernel GCM message, notif not shown");
             }
 
-            if (cfg.hasValidProKey() && cfg.getAutoDlState()) info.downloadFileSilent(ctx);
+            if (cfg.hasValidProKey() && cfg.getAutoDlState()) info.downloadFileSilent(ctx, DlState.PRIORITY_AUTO);
         }
     }
 
@@ -112,10 +113,11 @@ public class GCMIntentService extends GCMBaseIntentService {
         params.add(new BasicNameValuePair("reg_id", regID));
 
         try {
-            HttpClient http = new DefaultHttpClient();
+            HttpClient http = SharedHttpClient.get();
             HttpPost req = new HttpPost(Config.GCM_REGISTER_URL);
             req.setEntity(new UrlEncodedFormEntity(params));
             HttpResponse resp = http.execute(req);
+            if (resp.getEntity() != null) resp.getEntity().consumeContent();
             if (resp.getStatusLine().getStatusCode() != 200) {
                 Log.w(Config.LOG_TAG + "GCMRegister", "unregistration response non-200");
             }
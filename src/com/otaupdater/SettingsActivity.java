@@ -34,11 +34,12 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceScreen;
 import android.support.v4.app.NavUtils;
 import android.util.Log;
@@ -46,13 +47,15 @@ import android.util.Log;
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockPreferenceActivity;
 import com.actionbarsherlock.view.MenuItem;
+import com.otaupdater.utils.BandwidthLimiter;
 import com.otaupdater.utils.Config;
 import com.otaupdater.utils.DialogCallback;
+import com.otaupdater.utils.SharedHttpClient;
 import com.otaupdater.utils.UserUtils;
 import com.otaupdater.utils.UserUtils.LoginCallback;
 import com.otaupdater.utils.Utils;
 
-public class SettingsActivity extends SherlockPreferenceActivity implements DialogCallback {
+public class SettingsActivity extends SherlockPreferenceActivity implements DialogCallback, OnPreferenceChangeListener {
     public static final String EXTRA_SHOW_GET_PROKEY_DLG = "show_get_prokey";
 
     private final ArrayList<Dialog> dlgs = new ArrayList<Dialog>();
@@ -62,6 +65,13 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
     private CheckBoxPreference notifPref;
     private CheckBoxPreference wifidlPref;
     private CheckBoxPreference autodlPref;
+    private ListPreference dlParallelPref;
+    private ListPreference rateLimitPref;
+    private ListPreference wifiRateLimitPref;
+    private ListPreference mobileRateLimitPref;
+    private ListPreference perDlRateLimitPref;
+    private ListPreference cacheQuotaPref;
+    private ListPreference keepLastPref;
     private Preference resetWarnPref;
     private Preference prokeyPref;
     private Preference donatePref;
@@ -92,6 +102,18 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
         autodlPref = (CheckBoxPreference) findPreference("autodl_pref");
         autodlPref.setChecked(cfg.getAutoDlState());
 
+        dlParallelPref = (ListPreference) findPreference("dlparallel_pref");
+        dlParallelPref.setValue(String.valueOf(cfg.getMaxParallelDl()));
+        dlParallelPref.setSummary(getString(R.string.settings_dlparallel_summary, dlParallelPref.getValue()));
+        dlParallelPref.setOnPreferenceChangeListener(this);
+
+        rateLimitPref = initListPref("ratelimit_pref", cfg.getDlRateLimit());
+        wifiRateLimitPref = initListPref("wifiratelimit_pref", cfg.getWifiRateLimit());
+        mobileRateLimitPref = initListPref("mobileratelimit_pref", cfg.getMobileRateLimit());
+        perDlRateLimitPref = initListPref("perdlratelimit_pref", cfg.getPerDownloadRateLimit());
+        cacheQuotaPref = initListPref("cachequota_pref", cfg.getDlCacheQuota());
+        keepLastPref = initListPref("keeplast_pref", cfg.getDlKeepLast());
+
         prokeyPref = findPreference("prokey_pref");
         if (cfg.hasValidProKey()) {
             prokeyPref.setTitle(R.string.settings_prokey_title_pro);
@@ -192,6 +214,49 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
         return true;
     }
 
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        if (preference == dlParallelPref) {
+            cfg.setMaxParallelDl(Integer.parseInt((String) newValue));
+            dlParallelPref.setSummary(getString(R.string.settings_dlparallel_summary, newValue));
+
+            Intent i = new Intent(this, DownloadService.class);
+            i.setAction(DownloadService.SERVICE_ACTION);
+            i.putExtra(DownloadService.EXTRA_CMD, DownloadService.CMD_LIMITS_CHANGED);
+            startService(i);
+            return true;
+        } else if (preference == rateLimitPref || preference == wifiRateLimitPref ||
+                preference == mobileRateLimitPref || preference == perDlRateLimitPref) {
+            ListPreference pref = (ListPreference) preference;
+            int limit = Integer.parseInt((String) newValue);
+            if (pref == rateLimitPref) cfg.setDlRateLimit(limit);
+            else if (pref == wifiRateLimitPref) cfg.setWifiRateLimit(limit);
+            else if (pref == mobileRateLimitPref) cfg.setMobileRateLimit(limit);
+            else cfg.setPerDownloadRateLimit(limit);
+
+            pref.setSummary(pref.getEntries()[pref.findIndexOfValue((String) newValue)]);
+            BandwidthLimiter.updateLimits(this);
+            return true;
+        } else if (preference == cacheQuotaPref || preference == keepLastPref) {
+            ListPreference pref = (ListPreference) preference;
+            if (pref == cacheQuotaPref) cfg.setDlCacheQuota(Integer.parseInt((String) newValue));
+            else cfg.setDlKeepLast(Integer.parseInt((String) newValue));
+
+            pref.setSummary(pref.getEntries()[pref.findIndexOfValue((String) newValue)]);
+            return true;
+        }
+        return false;
+    }
+
+    private ListPreference initListPref(String key, int limit) {
+        ListPreference pref = (ListPreference) findPreference(key);
+        pref.setValue(String.valueOf(limit));
+        if (pref.getEntry() == null) pref.setValueIndex(0);
+        pref.setSummary(pref.getEntry());
+        pref.setOnPreferenceChangeListener(this);
+        return pref;
+    }
+
     private void showGetProKeyDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.settings_prokey_title);
@@ -294,7 +359,7 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
 
         @Override
         protected Boolean doInBackground(Void... unused) {
-            HttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, ctx);
+            HttpClient httpc = SharedHttpClient.get();
 
             try {
                 JSONObject data = new JSONObject();
@@ -323,6 +388,7 @@ public class SettingsActivity extends SherlockPreferenceActivity implements Dial
                         //TODO error
                     }
                 } else {
+                    if (entity != null) entity.consumeContent();
                     Log.w(Config.LOG_TAG + "Redeem", "bad server response (" + resp.getStatusLine().getStatusCode() + ")");
                 }
             } catch (Exception e) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/*
+ * Token bucket used to cap download bandwidth. Callers reserve the bytes they just read
+ * and get back how long they should sleep; the bucket may go into debt so large reads
+ * are paced out rather than refused. A rate of 0 means unlimited and costs a single
+ * volatile read.
+ */
+public class BandwidthLimiter {
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter();
+    private static volatile long perDownloadRate = 0;
+
+    private volatile long rate = 0;
+    private long tokens = 0;
+    private long lastRefill = 0;
+
+    public static BandwidthLimiter getGlobal() {
+        return GLOBAL;
+    }
+
+    public static long getPerDownloadRate() {
+        return perDownloadRate;
+    }
+
+    public static void updateLimits(Context ctx) {
+        Config cfg = Config.getInstance(ctx.getApplicationContext());
+
+        ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
+        boolean wifi = ni != null && ni.getType() == ConnectivityManager.TYPE_WIFI;
+
+        long globalRate = cfg.getDlRateLimit() * 1024L;
+        long netRate = (wifi ? cfg.getWifiRateLimit() : cfg.getMobileRateLimit()) * 1024L;
+        if (globalRate == 0 || (netRate != 0 && netRate < globalRate)) globalRate = netRate;
+
+        GLOBAL.setRate(globalRate);
+        perDownloadRate = cfg.getPerDownloadRateLimit() * 1024L;
+    }
+
+    public void setRate(long bytesPerSec) {
+        if (bytesPerSec == rate) return;
+        synchronized (this) {
+            rate = bytesPerSec;
+            tokens = 0;
+            lastRefill = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    public long getMaxChunk() {
+        long curRate = rate;
+        return curRate == 0 ? Long.MAX_VALUE : Math.max(curRate / 4, 1024);
+    }
+
+    public long reserve(int bytes) {
+        long curRate = rate;
+        if (curRate == 0) return 0;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tokens += (now - lastRefill) * curRate / 1000;
+            if (tokens > curRate) tokens = curRate;
+            lastRefill = now;
+
+            tokens -= bytes;
+            if (tokens >= 0) return 0;
+            return -tokens * 1000 / curRate;
+        }
+    }
+}
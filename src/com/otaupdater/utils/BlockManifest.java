@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/*
+ * Block checksum manifest published next to a zip (<url>.blocks), in the form:
+ *
+ *   OTABLOCKS 1
+ *   size <file size>
+ *   blocksize <block size>
+ *   <rolling checksum, 8 hex> <md5, 32 hex>     (one line per block)
+ *
+ * The rolling checksum is the rsync one over a full block, see BlockMatcher.
+ */
+public class BlockManifest {
+    private final long size;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    private BlockManifest(long size, int blockSize, int[] weak, byte[][] strong) {
+        this.size = size;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public static BlockManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        if (!"OTABLOCKS 1".equals(reader.readLine())) throw new IOException("not a block manifest");
+
+        long size;
+        int blockSize;
+        try {
+            size = Long.parseLong(readField(reader, "size"));
+            blockSize = Integer.parseInt(readField(reader, "blocksize"));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad block manifest header");
+        }
+        if (size <= 0 || blockSize <= 0) throw new IOException("bad block manifest header");
+
+        int numBlocks = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[numBlocks];
+        byte[][] strong = new byte[numBlocks][];
+        for (int q = 0; q < numBlocks; q++) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("block manifest truncated at block " + q);
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2 || parts[0].length() != 8 || parts[1].length() != 32) {
+                throw new IOException("bad block manifest line " + q);
+            }
+            try {
+                weak[q] = (int) Long.parseLong(parts[0], 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad hex in block manifest");
+            }
+            strong[q] = parseHex(parts[1]);
+        }
+
+        return new BlockManifest(size, blockSize, weak, strong);
+    }
+
+    private static String readField(BufferedReader reader, String name) throws IOException {
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(name + " ")) throw new IOException("missing " + name + " in block manifest");
+        return line.substring(name.length() + 1).trim();
+    }
+
+    private static byte[] parseHex(String hex) throws IOException {
+        byte[] data = new byte[hex.length() / 2];
+        for (int q = 0; q < data.length; q++) {
+            int hi = Character.digit(hex.charAt(q * 2), 16);
+            int lo = Character.digit(hex.charAt(q * 2 + 1), 16);
+            if (hi == -1 || lo == -1) throw new IOException("bad hex in block manifest");
+            data[q] = (byte) ((hi << 4) | lo);
+        }
+        return data;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getNumBlocks() {
+        return weak.length;
+    }
+
+    /* only full blocks can be matched against local files, the short tail is always fetched */
+    public int getNumFullBlocks() {
+        return (int) (size / blockSize);
+    }
+
+    public long getBlockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    public long getBlockEnd(int block) {
+        return Math.min(getBlockStart(block) + blockSize, size) - 1;
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    public byte[] getStrong(int block) {
+        return strong[block];
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/*
+ * Finds blocks of a BlockManifest inside local files using the rsync rolling checksum,
+ * confirming candidates with md5. After a match the window jumps a whole block ahead,
+ * otherwise it slides by one byte.
+ */
+public class BlockMatcher {
+    private static final int FILTER_BITS = 1 << 20;
+
+    private final BlockManifest manifest;
+    private final HashMap<Integer, ArrayList<Integer>> weakBlocks = new HashMap<Integer, ArrayList<Integer>>();
+    private final BitSet weakFilter = new BitSet(FILTER_BITS);
+
+    private final File[] source;
+    private final long[] sourceOffset;
+    private int numMatched = 0;
+
+    public BlockMatcher(BlockManifest manifest) {
+        this.manifest = manifest;
+        int numBlocks = manifest.getNumFullBlocks();
+        source = new File[manifest.getNumBlocks()];
+        sourceOffset = new long[manifest.getNumBlocks()];
+
+        for (int q = 0; q < numBlocks; q++) {
+            int weak = manifest.getWeak(q);
+            ArrayList<Integer> blocks = weakBlocks.get(weak);
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                weakBlocks.put(weak, blocks);
+            }
+            blocks.add(q);
+            weakFilter.set(weak & (FILTER_BITS - 1));
+        }
+    }
+
+    public static int weakChecksum(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int q = 0; q < len; q++) {
+            int x = data[off + q] & 0xff;
+            a += x;
+            b += (len - q) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    public boolean isComplete() {
+        return numMatched == manifest.getNumFullBlocks();
+    }
+
+    public int getNumMatched() {
+        return numMatched;
+    }
+
+    public boolean isMatched(int block) {
+        return source[block] != null;
+    }
+
+    public File getSource(int block) {
+        return source[block];
+    }
+
+    public long getSourceOffset(int block) {
+        return sourceOffset[block];
+    }
+
+    public long getMatchedBytes() {
+        return (long) numMatched * manifest.getBlockSize();
+    }
+
+    public int scan(File file) throws IOException {
+        if (isComplete()) return 0;
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("md5 not available");
+        }
+
+        int bs = manifest.getBlockSize();
+        byte[] win = new byte[bs];
+        int head = 0;
+        int filled = 0;
+        int a = 0, b = 0;
+        long pos = 0;
+        int found = 0;
+
+        InputStream in = new FileInputStream(file);
+        byte[] buf = new byte[BufferPool.MIN_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    int x = buf[i] & 0xff;
+                    pos++;
+                    if (filled < bs) {
+                        win[(head + filled) % bs] = (byte) x;
+                        a += x;
+                        b += (bs - filled) * x;
+                        filled++;
+                        if (filled < bs) continue;
+                    } else {
+                        int out = win[head] & 0xff;
+                        win[head] = (byte) x;
+                        head = head + 1 == bs ? 0 : head + 1;
+                        a += x - out;
+                        b += a - bs * out;
+                    }
+
+                    int weak = (a & 0xffff) | ((b & 0xffff) << 16);
+                    if (!weakFilter.get(weak & (FILTER_BITS - 1))) continue;
+                    ArrayList<Integer> blocks = weakBlocks.get(weak);
+                    if (blocks == null) continue;
+
+                    md5.reset();
+                    md5.update(win, head, bs - head);
+                    md5.update(win, 0, head);
+                    byte[] strong = md5.digest();
+
+                    boolean match = false;
+                    for (int block : blocks) {
+                        if (!Arrays.equals(strong, manifest.getStrong(block))) continue;
+                        match = true;
+                        if (source[block] == null) {
+                            source[block] = file;
+                            sourceOffset[block] = pos - bs;
+                            numMatched++;
+                            found++;
+                        }
+                    }
+                    if (match) {
+                        if (isComplete()) return found;
+                        head = 0;
+                        filled = 0;
+                        a = 0;
+                        b = 0;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return found;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Pool of download buffers in power-of-two size classes from MIN_SIZE to MAX_SIZE.
+ * Buffers are heap-backed so InputStream reads can go straight into the backing array.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 65536; //64kb
+    public static final int MAX_SIZE = 1048576; //1mb
+
+    private static final int NUM_CLASSES = 5;
+    private static final int MAX_POOLED_PER_CLASS = 4;
+
+    private static final ByteBuffer[][] POOL = new ByteBuffer[NUM_CLASSES][MAX_POOLED_PER_CLASS];
+    private static final int[] POOL_COUNT = new int[NUM_CLASSES];
+
+    public static synchronized ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buf;
+        if (POOL_COUNT[sizeClass] != 0) {
+            POOL_COUNT[sizeClass]--;
+            buf = POOL[sizeClass][POOL_COUNT[sizeClass]];
+            POOL[sizeClass][POOL_COUNT[sizeClass]] = null;
+            buf.clear();
+        } else {
+            buf = ByteBuffer.allocate(MIN_SIZE << sizeClass);
+        }
+        return buf;
+    }
+
+    public static synchronized void release(ByteBuffer buf) {
+        if (buf == null) return;
+        int sizeClass = sizeClass(buf.capacity());
+        if ((MIN_SIZE << sizeClass) != buf.capacity()) return;
+        if (POOL_COUNT[sizeClass] == MAX_POOLED_PER_CLASS) return;
+        POOL[sizeClass][POOL_COUNT[sizeClass]] = buf;
+        POOL_COUNT[sizeClass]++;
+    }
+
+    public static int sizeForRate(long bytesPerSec, long targetMillis) {
+        long want = bytesPerSec * targetMillis / 1000;
+        int size = MIN_SIZE;
+        while (size < MAX_SIZE && size < want) size <<= 1;
+        return size;
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = 0;
+        while (sizeClass < NUM_CLASSES - 1 && (MIN_SIZE << sizeClass) < size) sizeClass++;
+        return sizeClass;
+    }
+}
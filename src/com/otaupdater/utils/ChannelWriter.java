@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads a download stream into a pooled buffer and writes it to a FileChannel only
+ * once the buffer is full, resizing the buffer so a fill takes about TARGET_FILL_MILLIS.
+ * The digest is fed as bytes are written, so its count is always a flushed file offset.
+ */
+public class ChannelWriter {
+    private static final long TARGET_FILL_MILLIS = 250;
+
+    private final FileChannel channel;
+    private final long startPosition;
+    private ByteBuffer buf;
+    private Md5 digest = null;
+    private long lastFlush;
+
+    private long bytesWritten = 0;
+    private int numWrites = 0;
+    private long writeNanos = 0;
+
+    public ChannelWriter(FileChannel channel, long position) throws IOException {
+        this.channel = channel;
+        this.startPosition = position;
+        channel.position(position);
+        buf = BufferPool.acquire(BufferPool.MIN_SIZE);
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /*
+     * The digest continues from its own count: bytes written below it are skipped, which
+     * lets a resume refetch data the digest already covers, and a gap above it stops it.
+     */
+    public void setDigest(Md5 digest) {
+        this.digest = digest;
+    }
+
+    public int readFrom(InputStream in) throws IOException {
+        return readFrom(in, Long.MAX_VALUE);
+    }
+
+    public int readFrom(InputStream in, long maxBytes) throws IOException {
+        if (!buf.hasRemaining()) flush();
+
+        int len = (int) Math.min(buf.remaining(), maxBytes);
+        int nRead = in.read(buf.array(), buf.arrayOffset() + buf.position(), len);
+        if (nRead > 0) buf.position(buf.position() + nRead);
+        return nRead;
+    }
+
+    public void flush() throws IOException {
+        if (buf.position() == 0) return;
+
+        int nBytes = buf.position();
+        if (digest != null) {
+            synchronized (digest) {
+                long skip = digest.getCount() - (startPosition + bytesWritten);
+                if (skip >= 0 && skip < nBytes) digest.update(buf.array(), buf.arrayOffset() + (int) skip, nBytes - (int) skip);
+            }
+        }
+
+        long start = System.nanoTime();
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+        writeNanos += System.nanoTime() - start;
+        bytesWritten += nBytes;
+        numWrites++;
+
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastFlush;
+        lastFlush = now;
+        if (elapsed > 0) {
+            int wantSize = BufferPool.sizeForRate(nBytes * 1000L / elapsed, TARGET_FILL_MILLIS);
+            if (wantSize != buf.capacity()) {
+                BufferPool.release(buf);
+                buf = BufferPool.acquire(wantSize);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (buf == null) return;
+        try {
+            flush();
+        } finally {
+            BufferPool.release(buf);
+            buf = null;
+            channel.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getNumWrites() {
+        return numWrites;
+    }
+
+    public long getWriteMillis() {
+        return writeNanos / 1000000;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * Chunk hash manifest published next to a zip (<url>.chunks), in the form:
+ *
+ *   OTACHUNKS 1
+ *   size <file size>
+ *   chunksize <chunk size>
+ *   <sha256, 64 hex>     (one line per chunk)
+ *   root <sha256, 64 hex>     (optional)
+ *
+ * The root is the sha256 of the chunk hashes in order, so a manifest that was cut short
+ * or damaged in transit is rejected instead of condemning good chunks.
+ */
+public class ChunkManifest {
+    private final long size;
+    private final int chunkSize;
+    private final byte[][] hashes;
+
+    private ChunkManifest(long size, int chunkSize, byte[][] hashes) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+    }
+
+    public static ChunkManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        if (!"OTACHUNKS 1".equals(reader.readLine())) throw new IOException("not a chunk manifest");
+
+        long size;
+        int chunkSize;
+        try {
+            size = Long.parseLong(readField(reader, "size"));
+            chunkSize = Integer.parseInt(readField(reader, "chunksize"));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad chunk manifest header");
+        }
+        if (size <= 0 || chunkSize <= 0 || chunkSize > Config.DL_CHUNK_MAX_SIZE) throw new IOException("bad chunk manifest header");
+
+        int numChunks = (int) ((size + chunkSize - 1) / chunkSize);
+        byte[][] hashes = new byte[numChunks][];
+        for (int q = 0; q < numChunks; q++) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("chunk manifest truncated at chunk " + q);
+            line = line.trim();
+            if (line.length() != 64) throw new IOException("bad chunk manifest line " + q);
+            hashes[q] = parseHex(line);
+        }
+
+        String line = reader.readLine();
+        if (line != null && line.startsWith("root ")) {
+            MessageDigest root = newDigest();
+            for (byte[] hash : hashes) {
+                root.update(hash);
+            }
+            if (!Arrays.equals(root.digest(), parseHex(line.substring(5).trim()))) {
+                throw new IOException("chunk manifest root mismatch");
+            }
+        }
+
+        return new ChunkManifest(size, chunkSize, hashes);
+    }
+
+    private static String readField(BufferedReader reader, String name) throws IOException {
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(name + " ")) throw new IOException("missing " + name + " in chunk manifest");
+        return line.substring(name.length() + 1).trim();
+    }
+
+    private static byte[] parseHex(String hex) throws IOException {
+        if (hex.length() != 64) throw new IOException("bad hash in chunk manifest");
+        byte[] data = new byte[hex.length() / 2];
+        for (int q = 0; q < data.length; q++) {
+            int hi = Character.digit(hex.charAt(q * 2), 16);
+            int lo = Character.digit(hex.charAt(q * 2 + 1), 16);
+            if (hi == -1 || lo == -1) throw new IOException("bad hex in chunk manifest");
+            data[q] = (byte) ((hi << 4) | lo);
+        }
+        return data;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNumChunks() {
+        return hashes.length;
+    }
+
+    public long getChunkStart(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public long getChunkEnd(int chunk) {
+        return Math.min(getChunkStart(chunk) + chunkSize, size) - 1;
+    }
+
+    public int getChunkLength(int chunk) {
+        return (int) (getChunkEnd(chunk) - getChunkStart(chunk) + 1);
+    }
+
+    public boolean matches(int chunk, byte[] data) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data, 0, getChunkLength(chunk));
+        return Arrays.equals(digest.digest(), hashes[chunk]);
+    }
+
+    /* hashes the chunk as it is on disk */
+    public boolean verify(int chunk, File f) throws IOException {
+        MessageDigest digest = newDigest();
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        ByteBuffer buf = BufferPool.acquire(BufferPool.MIN_SIZE);
+        try {
+            byte[] b = buf.array();
+            raf.seek(getChunkStart(chunk));
+            for (int left = getChunkLength(chunk); left > 0; ) {
+                int nRead = raf.read(b, 0, Math.min(left, b.length));
+                if (nRead == -1) return false;
+                digest.update(b, 0, nRead);
+                left -= nRead;
+            }
+        } finally {
+            BufferPool.release(buf);
+            raf.close();
+        }
+        return Arrays.equals(digest.digest(), hashes[chunk]);
+    }
+}
@@ -55,6 +55,53 @@ public class Config {
     public static final int DL_MAX_REDIRECTS = 5;
     public static final int DL_RETRY_MAX = 86400; //60*60*24
     public static final int DL_RETRY_MIN = 30;
+    public static final int DL_RETRY_JITTER_PCT = 10;
+    public static final long DL_RETRY_JITTER_MIN = 5000;
+    public static final long DL_RETRY_BATCH_WINDOW = 60000;
+    public static final long DL_PRIORITY_AGING = 600000; //a waiting download moves up a class every 10 min
+    public static final int DL_RECENT_LIMIT = 20;
+    public static final int DL_CHANGE_LOG_MAX = 256;
+    public static final long DL_PROGRESS_PUSH_DELAY = 500;
+
+    public static final int DL_SEGMENTS_DEFAULT = 4;
+    public static final int DL_SEGMENTS_MAX = 8;
+    public static final long DL_SEGMENT_MIN_SIZE = 4 * 1048576; //4mb
+
+    public static final int DL_PARALLEL_DEFAULT = 2;
+    public static final int DL_PARALLEL_MAX = 4;
+    public static final int DL_HOST_CONNECTIONS_DEFAULT = 4;
+
+    public static final int DL_MIRROR_PROBE_TIMEOUT = 5000;
+    public static final int DL_MIRROR_RATE_WINDOW = 10000;
+    public static final int DL_MIRROR_SLOW_FACTOR = 4; //switch when below 1/4 of the best window
+
+    public static final int DL_STALL_TIMEOUT = 30000;
+    public static final int DL_STALL_WINDOW = 20000;
+    public static final long DL_STALL_MIN_RATE = 1024;
+    public static final int DL_MAX_RECONNECTS = 5; //in a row without progress
+
+    public static final int DL_RESUME_TAIL_BYTES = 16384;
+    public static final int DL_RESUME_TAIL_MAX = BufferPool.MAX_SIZE + DL_RESUME_TAIL_BYTES; //covers a lost write buffer
+    public static final int DL_RESUME_TAIL_MIN_MATCH = 4096;
+
+    public static final long DL_PROGRESS_MIN_INTERVAL = 100;
+    public static final long DL_PROGRESS_INTERVAL = 500;
+    public static final long DL_PROGRESS_BYTES = 1048576;
+
+    public static final String DL_BLOCK_MANIFEST_SUFFIX = ".blocks";
+    public static final int DL_BLOCK_MAX_CANDIDATES = 3;
+    public static final int DL_BLOCK_MIN_REUSE_PCT = 10;
+    public static final long DL_BLOCK_MAX_GAP = 65536;
+    public static final int DL_BLOCK_MAX_RANGES = 64;
+
+    public static final String DL_CHUNK_MANIFEST_SUFFIX = ".chunks";
+    public static final int DL_CHUNK_MAX_SIZE = 16777216; //16mb, a bad chunk is fetched again in one piece
+
+    public static final int HTTP_CONNECT_TIMEOUT = 20000;
+    public static final int HTTP_SOCKET_TIMEOUT = 60000;
+    public static final int HTTP_KEEPALIVE = 30000;
+    public static final int HTTP_MAX_CONNECTIONS = 24;
+    public static final int HTTP_MAX_HOST_CONNECTIONS = 10;
 
     public static final int WAKE_TIMEOUT = 30000;
 
@@ -105,6 +152,15 @@ public class Config {
     private boolean autoDl = false;
     private boolean ignoredUnsupportedWarn = false;
     private boolean ignoredDataWarn = false;
+    private int dlSegments = DL_SEGMENTS_DEFAULT;
+    private int maxParallelDl = DL_PARALLEL_DEFAULT;
+    private int maxHostConnections = DL_HOST_CONNECTIONS_DEFAULT;
+    private int dlRateLimit = 0;
+    private int wifiRateLimit = 0;
+    private int mobileRateLimit = 0;
+    private int perDownloadRateLimit = 0;
+    private int dlCacheQuota = 0;
+    private int dlKeepLast = 0;
 
     private int lastVersion = -1;
     private String lastDevice = null;
@@ -140,6 +196,15 @@ public class Config {
         autoDl = PREFS.getBoolean("autoDl", autoDl);
         ignoredUnsupportedWarn = PREFS.getBoolean("ignoredUnsupportedWarn", ignoredUnsupportedWarn);
         ignoredDataWarn = PREFS.getBoolean("ignoredDataWarn", ignoredDataWarn);
+        dlSegments = PREFS.getInt("dlSegments", dlSegments);
+        maxParallelDl = PREFS.getInt("maxParallelDl", maxParallelDl);
+        maxHostConnections = PREFS.getInt("maxHostConnections", maxHostConnections);
+        dlRateLimit = PREFS.getInt("dlRateLimit", dlRateLimit);
+        wifiRateLimit = PREFS.getInt("wifiRateLimit", wifiRateLimit);
+        mobileRateLimit = PREFS.getInt("mobileRateLimit", mobileRateLimit);
+        perDownloadRateLimit = PREFS.getInt("perDownloadRateLimit", perDownloadRateLimit);
+        dlCacheQuota = PREFS.getInt("dlCacheQuota", dlCacheQuota);
+        dlKeepLast = PREFS.getInt("dlKeepLast", dlKeepLast);
 
         lastDevice = PREFS.getString("device", lastDevice);
         lastVersion = PREFS.getInt("version", lastVersion);
@@ -152,8 +217,13 @@ public class Config {
                         PREFS.getString("rom_info_version", null),
                         PREFS.getString("rom_info_changelog", null),
                         PREFS.getString("rom_info_url", null),
+                        Utils.splitMirrors(PREFS.getString("rom_info_mirrors", null)),
                         PREFS.getString("rom_info_md5", null),
                         Utils.parseDate(PREFS.getString("rom_info_date", null)));
+                storedRomUpdate.sha256 = PREFS.getString("rom_info_sha256", null);
+                storedRomUpdate.deltaFrom = PREFS.getString("rom_info_delta_from", null);
+                storedRomUpdate.deltaUrl = PREFS.getString("rom_info_delta_url", null);
+                storedRomUpdate.deltaMd5 = PREFS.getString("rom_info_delta_md5", null);
             } else {
                 clearStoredRomUpdate();
             }
@@ -165,8 +235,10 @@ public class Config {
                         PREFS.getString("kernel_info_version", null),
                         PREFS.getString("kernel_info_changelog", null),
                         PREFS.getString("kernel_info_url", null),
+                        Utils.splitMirrors(PREFS.getString("kernel_info_mirrors", null)),
                         PREFS.getString("kernel_info_md5", null),
                         Utils.parseDate(PREFS.getString("kernel_info_date", null)));
+                storedKernelUpdate.sha256 = PREFS.getString("kernel_info_sha256", null);
             } else {
                 clearStoredKernelUpdate();
             }
@@ -289,6 +361,97 @@ public class Config {
         putBoolean("ignoredDataWarn", ignored);
     }
 
+    public int getDlSegments() {
+        return dlSegments;
+    }
+
+    public void setDlSegments(int dlSegments) {
+        if (dlSegments < 1) dlSegments = 1;
+        if (dlSegments > DL_SEGMENTS_MAX) dlSegments = DL_SEGMENTS_MAX;
+        this.dlSegments = dlSegments;
+        putInt("dlSegments", dlSegments);
+    }
+
+    public int getMaxParallelDl() {
+        return maxParallelDl;
+    }
+
+    public void setMaxParallelDl(int maxParallelDl) {
+        if (maxParallelDl < 1) maxParallelDl = 1;
+        if (maxParallelDl > DL_PARALLEL_MAX) maxParallelDl = DL_PARALLEL_MAX;
+        this.maxParallelDl = maxParallelDl;
+        putInt("maxParallelDl", maxParallelDl);
+    }
+
+    public int getMaxHostConnections() {
+        return maxHostConnections;
+    }
+
+    public void setMaxHostConnections(int maxHostConnections) {
+        if (maxHostConnections < 1) maxHostConnections = 1;
+        // SharedHttpClient won't open more than this per route anyway
+        if (maxHostConnections > HTTP_MAX_HOST_CONNECTIONS) maxHostConnections = HTTP_MAX_HOST_CONNECTIONS;
+        this.maxHostConnections = maxHostConnections;
+        putInt("maxHostConnections", maxHostConnections);
+    }
+
+    /* rate limits are in KB/s, 0 = unlimited */
+    public int getDlRateLimit() {
+        return dlRateLimit;
+    }
+
+    public void setDlRateLimit(int dlRateLimit) {
+        this.dlRateLimit = Math.max(0, dlRateLimit);
+        putInt("dlRateLimit", this.dlRateLimit);
+    }
+
+    public int getWifiRateLimit() {
+        return wifiRateLimit;
+    }
+
+    public void setWifiRateLimit(int wifiRateLimit) {
+        this.wifiRateLimit = Math.max(0, wifiRateLimit);
+        putInt("wifiRateLimit", this.wifiRateLimit);
+    }
+
+    public int getMobileRateLimit() {
+        return mobileRateLimit;
+    }
+
+    public void setMobileRateLimit(int mobileRateLimit) {
+        this.mobileRateLimit = Math.max(0, mobileRateLimit);
+        putInt("mobileRateLimit", this.mobileRateLimit);
+    }
+
+    public int getPerDownloadRateLimit() {
+        return perDownloadRateLimit;
+    }
+
+    public void setPerDownloadRateLimit(int perDownloadRateLimit) {
+        this.perDownloadRateLimit = Math.max(0, perDownloadRateLimit);
+        putInt("perDownloadRateLimit", this.perDownloadRateLimit);
+    }
+
+    /* in MB, 0 for no limit */
+    public int getDlCacheQuota() {
+        return dlCacheQuota;
+    }
+
+    public void setDlCacheQuota(int dlCacheQuota) {
+        this.dlCacheQuota = Math.max(0, dlCacheQuota);
+        putInt("dlCacheQuota", this.dlCacheQuota);
+    }
+
+    /* zips to keep per download dir, 0 to keep all */
+    public int getDlKeepLast() {
+        return dlKeepLast;
+    }
+
+    public void setDlKeepLast(int dlKeepLast) {
+        this.dlKeepLast = Math.max(0, dlKeepLast);
+        putInt("dlKeepLast", this.dlKeepLast);
+    }
+
     public int getLastVersion() {
         return lastVersion;
     }
@@ -346,8 +509,13 @@ public class Config {
             editor.putString("rom_info_version", info.version);
             editor.putString("rom_info_changelog", info.changelog);
             editor.putString("rom_info_url", info.url);
+            editor.putString("rom_info_mirrors", Utils.joinMirrors(info.mirrors));
             editor.putString("rom_info_md5", info.md5);
             editor.putString("rom_info_date", Utils.formatDate(info.date));
+            editor.putString("rom_info_sha256", info.sha256);
+            editor.putString("rom_info_delta_from", info.deltaFrom);
+            editor.putString("rom_info_delta_url", info.deltaUrl);
+            editor.putString("rom_info_delta_md5", info.deltaMd5);
             editor.commit();
         }
     }
@@ -359,8 +527,13 @@ public class Config {
             editor.remove("rom_info_version");
             editor.remove("rom_info_changelog");
             editor.remove("rom_info_url");
+            editor.remove("rom_info_mirrors");
             editor.remove("rom_info_md5");
             editor.remove("rom_info_date");
+            editor.remove("rom_info_sha256");
+            editor.remove("rom_info_delta_from");
+            editor.remove("rom_info_delta_url");
+            editor.remove("rom_info_delta_md5");
             editor.commit();
         }
     }
@@ -381,8 +554,10 @@ public class Config {
             editor.putString("kernel_info_version", info.version);
             editor.putString("kernel_info_changelog", info.changelog);
             editor.putString("kernel_info_url", info.url);
+            editor.putString("kernel_info_mirrors", Utils.joinMirrors(info.mirrors));
             editor.putString("kernel_info_md5", info.md5);
             editor.putString("kernel_info_date", Utils.formatDate(info.date));
+            editor.putString("kernel_info_sha256", info.sha256);
             editor.commit();
         }
     }
@@ -394,8 +569,10 @@ public class Config {
             editor.remove("kernel_info_version");
             editor.remove("kernel_info_changelog");
             editor.remove("kernel_info_url");
+            editor.remove("kernel_info_mirrors");
             editor.remove("kernel_info_md5");
             editor.remove("kernel_info_date");
+            editor.remove("kernel_info_sha256");
             editor.commit();
         }
     }
@@ -444,6 +621,14 @@ public class Config {
         }
     }
 
+    private void putInt(String name, int value) {
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.putInt(name, value);
+            editor.commit();
+        }
+    }
+
     private void putLong(String name, long value) {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
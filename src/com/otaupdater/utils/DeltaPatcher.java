@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Applies a delta patch against the previous zip to rebuild the new one. A patch is a gzip
+ * stream of:
+ *
+ *   "OTADELTA" version(byte) targetSize(long)
+ *   { OP_COPY srcOffset(long) length(int) | OP_DATA length(int) bytes[length] }*
+ *   OP_END
+ *
+ * The patch is read front to back and the output written sequentially, only the base is
+ * accessed randomly, so nothing is held in memory beyond one buffer.
+ */
+public class DeltaPatcher {
+    private static final byte[] MAGIC = { 'O', 'T', 'A', 'D', 'E', 'L', 'T', 'A' };
+    private static final int VERSION = 1;
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_DATA = 2;
+
+    public static long apply(File base, File patch, File dest, Md5 digest) throws IOException {
+        DataInputStream in = null;
+        RandomAccessFile src = null;
+        OutputStream out = null;
+        ByteBuffer buf = BufferPool.acquire(BufferPool.MIN_SIZE);
+        try {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(patch), 8192)));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a delta patch");
+            if (in.readUnsignedByte() != VERSION) throw new IOException("unsupported delta version");
+            long targetSize = in.readLong();
+
+            src = new RandomAccessFile(base, "r");
+            long baseSize = src.length();
+            out = new BufferedOutputStream(new FileOutputStream(dest), 8192);
+            byte[] b = buf.array();
+
+            long written = 0;
+            while (true) {
+                int op = in.readUnsignedByte();
+                if (op == OP_END) break;
+
+                int len;
+                if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    len = in.readInt();
+                    if (offset < 0 || len < 0 || offset + len > baseSize) throw new IOException("copy outside of base file");
+                    src.seek(offset);
+                    for (int left = len; left > 0; ) {
+                        int n = Math.min(left, b.length);
+                        src.readFully(b, 0, n);
+                        out.write(b, 0, n);
+                        if (digest != null) digest.update(b, 0, n);
+                        left -= n;
+                    }
+                } else if (op == OP_DATA) {
+                    len = in.readInt();
+                    if (len < 0) throw new IOException("bad data length");
+                    for (int left = len; left > 0; ) {
+                        int n = Math.min(left, b.length);
+                        in.readFully(b, 0, n);
+                        out.write(b, 0, n);
+                        if (digest != null) digest.update(b, 0, n);
+                        left -= n;
+                    }
+                } else {
+                    throw new IOException("unknown delta op " + op);
+                }
+
+                written += len;
+                if (written > targetSize) throw new IOException("delta output too long");
+            }
+
+            if (written != targetSize) throw new IOException("delta output too short");
+            out.flush();
+            return written;
+        } catch (EOFException e) {
+            throw new IOException("truncated delta patch");
+        } finally {
+            BufferPool.release(buf);
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException e) { }
+            }
+            if (src != null) {
+                try { src.close(); }
+                catch (IOException e) { }
+            }
+            if (out != null) {
+                try { out.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * One page of the download change feed: everything that changed after the sequence number
+ * the client last saw. On a reset the client's copy is stale and states holds a full snapshot.
+ * Downloads whose status is unchanged since then only come as progress snapshots.
+ */
+public class DlChanges implements Parcelable {
+    public long seq = 0;
+    public boolean reset = false;
+    public final ArrayList<DlState> states = new ArrayList<DlState>();
+    public int[] removed = new int[0];
+    public ProgressSnapshot[] progress = new ProgressSnapshot[0];
+
+    public DlChanges() {
+    }
+
+    public boolean isEmpty() {
+        return !reset && states.size() == 0 && removed.length == 0 && progress.length == 0;
+    }
+
+    /*
+     * Merges into a list that was built from earlier pages. With a limit the list is kept
+     * newest first, as changed downloads are always the most recently updated ones.
+     */
+    public void apply(List<DlState> list, int limit) {
+        if (reset) {
+            list.clear();
+            list.addAll(states);
+            return;
+        }
+
+        for (int id : removed) {
+            int idx = indexOf(list, id);
+            if (idx != -1) list.remove(idx);
+        }
+        for (DlState state : states) {
+            int idx = indexOf(list, state.getId());
+            if (limit > 0) {
+                if (idx != -1) list.remove(idx);
+                list.add(0, state);
+            } else if (idx != -1) {
+                list.set(idx, state);
+            } else {
+                list.add(state);
+            }
+        }
+        for (ProgressSnapshot snapshot : progress) {
+            int idx = indexOf(list, snapshot.id);
+            if (idx != -1) list.get(idx).applySnapshot(snapshot);
+        }
+        while (limit > 0 && list.size() > limit) list.remove(list.size() - 1);
+    }
+
+    private static int indexOf(List<DlState> list, int id) {
+        for (int q = 0; q < list.size(); q++) {
+            if (list.get(q).getId() == id) return q;
+        }
+        return -1;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(seq);
+        dest.writeInt(reset ? 1 : 0);
+        dest.writeTypedList(states);
+        dest.writeIntArray(removed);
+        dest.writeTypedArray(progress, flags);
+    }
+
+    public static final Creator<DlChanges> CREATOR = new Creator<DlChanges>() {
+        @Override
+        public DlChanges[] newArray(int size) {
+            return new DlChanges[size];
+        }
+
+        @Override
+        public DlChanges createFromParcel(Parcel source) {
+            DlChanges changes = new DlChanges();
+            changes.seq = source.readLong();
+            changes.reset = source.readInt() == 1;
+            source.readTypedList(changes.states, DlState.CREATOR);
+            changes.removed = source.createIntArray();
+            changes.progress = source.createTypedArray(ProgressSnapshot.CREATOR);
+            return changes;
+        }
+    };
+}
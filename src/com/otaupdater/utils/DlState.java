@@ -16,11 +16,18 @@
 
 package com.otaupdater.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
 
 import android.content.Context;
+import android.text.format.DateUtils;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -51,6 +58,10 @@ public class DlState implements Parcelable, Serializable {
     public static final int STATUS_COMPLETED = 9;
     public static final int STATUS_FAILED = 10;
 
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_AUTO = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+
     public static final int FILTER_ALL = 0;
     public static final int FILTER_PENDING = 1;
     public static final int FILTER_RUNNING = 1 << 1;
@@ -65,6 +76,7 @@ public class DlState implements Parcelable, Serializable {
     private final KernelInfo kernelInfo;
 
     private transient DownloadTask task;
+    private transient int netStateVersion = 0;
 
     private int id;
     private long totalSize = 0;
@@ -72,14 +84,32 @@ public class DlState implements Parcelable, Serializable {
     private int status;
     private int numRedirects = 0;
     private String redirectedURL = null;
+    private int mirror = 0;
+    private boolean delta = false;
     private int numFailed = 0;
     private int retryAfter;
+    private long retryAt = 0;
+    private int priority = PRIORITY_INTERACTIVE;
+    private long queuedAt = 0;
+    private int numReconnects = 0;
     private String eTag;
+    private String lastModified;
     private boolean pausing = false;
     private boolean continuing = false;
     private DownloadResult result = null;
     private boolean oneTimeNotifShown = false;
 
+    private long[] segmentStart = null;
+    private long[] segmentEnd = null;
+    private long[] segmentDone = null;
+
+    private int chunkSize = 0;
+    private boolean[] chunkVerified = null;
+
+    private Md5 digest = null;
+
+    private transient RateEstimator rateEstimator = null;
+
     public DlState(RomInfo info) {
         romInfo = info;
         kernelInfo = null;
@@ -96,13 +126,21 @@ public class DlState implements Parcelable, Serializable {
         status = STATUS_QUEUED;
         numRedirects = 0;
         redirectedURL = null;
+        mirror = 0;
         numFailed = 0;
         retryAfter = -1;
+        retryAt = 0;
+        queuedAt = 0;
+        numReconnects = 0;
         eTag = null;
+        lastModified = null;
         pausing = false;
         continuing = false;
         result = null;
         setOneTimeNotifShown(false);
+        clearSegments();
+        clearChunks();
+        digest = null;
     }
 
     public boolean isRomDownload() {
@@ -140,11 +178,27 @@ public class DlState implements Parcelable, Serializable {
     }
 
     public String getMd5() {
+        if (delta) return romInfo.deltaMd5;
+        if (isRomDownload()) return romInfo.md5;
+        if (isKernelDownload()) return kernelInfo.md5;
+        return null;
+    }
+
+    /* md5 of the finished file, even while a delta is being fetched */
+    public String getTargetMd5() {
         if (isRomDownload()) return romInfo.md5;
         if (isKernelDownload()) return kernelInfo.md5;
         return null;
     }
 
+    /* optional, the server only sends it for full downloads */
+    public String getSha256() {
+        if (delta) return null;
+        if (isRomDownload()) return romInfo.sha256;
+        if (isKernelDownload()) return kernelInfo.sha256;
+        return null;
+    }
+
     public Date getDate() {
         if (isRomDownload()) return romInfo.date;
         if (isKernelDownload()) return kernelInfo.date;
@@ -153,9 +207,56 @@ public class DlState implements Parcelable, Serializable {
 
     public String getSourceURL() {
         if (redirectedURL != null) return redirectedURL;
-        if (isRomDownload()) return romInfo.url;
-        if (isKernelDownload()) return kernelInfo.url;
-        return null; //should never happen
+        String[] mirrors = getMirrors();
+        if (mirrors.length == 0) return null; //should never happen
+        return mirrors[mirror < mirrors.length ? mirror : 0];
+    }
+
+    public String[] getMirrors() {
+        String url = null;
+        String[] extra = null;
+        if (delta) {
+            url = romInfo.deltaUrl;
+        } else if (isRomDownload()) {
+            url = romInfo.url;
+            extra = romInfo.mirrors;
+        } else if (isKernelDownload()) {
+            url = kernelInfo.url;
+            extra = kernelInfo.mirrors;
+        }
+
+        ArrayList<String> mirrors = new ArrayList<String>();
+        if (url != null) mirrors.add(url);
+        if (extra != null) {
+            for (String m : extra) {
+                if (m != null && !mirrors.contains(m)) mirrors.add(m);
+            }
+        }
+        return mirrors.toArray(new String[mirrors.size()]);
+    }
+
+    public int getMirror() {
+        return mirror;
+    }
+
+    public void setMirror(int mirror) {
+        if (this.mirror == mirror) return;
+        this.mirror = mirror;
+        this.redirectedURL = null;
+        this.numRedirects = 0;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /* while set, the download fetches the patch from romInfo.deltaUrl into getDestFile() instead of the full zip */
+    public void setDelta(boolean delta) {
+        if (delta && (romInfo == null || !romInfo.hasDelta())) return;
+        this.delta = delta;
+        this.redirectedURL = null;
+        this.numRedirects = 0;
+        this.mirror = 0;
     }
 
     public void setRedirectURL(String url) {
@@ -163,6 +264,7 @@ public class DlState implements Parcelable, Serializable {
     }
 
     public File getDestFile() {
+        if (delta) return new File(Config.ROM_DL_PATH_FILE, romInfo.getDeltaFileName());
         if (isRomDownload()) return new File(Config.ROM_DL_PATH_FILE, romInfo.getDownloadFileName());
         if (isKernelDownload()) return new File(Config.KERNEL_DL_PATH_FILE, kernelInfo.getDownloadFileName());
         return null; //should never happen
@@ -176,6 +278,14 @@ public class DlState implements Parcelable, Serializable {
         this.task = task;
     }
 
+    public int getNetStateVersion() {
+        return netStateVersion;
+    }
+
+    public void setNetStateVersion(int netStateVersion) {
+        this.netStateVersion = netStateVersion;
+    }
+
     public long getTotalSize() {
         return totalSize;
     }
@@ -192,10 +302,14 @@ public class DlState implements Parcelable, Serializable {
         this.totalDone = totalDone;
     }
 
-    public void incTotalDone(int inc) {
+    public synchronized void incTotalDone(int inc) {
         this.totalDone += inc;
     }
 
+    public long getBytesRemaining() {
+        return totalSize == 0 ? 0 : Math.max(totalSize - totalDone, 0);
+    }
+
     public double getPctDone() {
         return ((double) totalDone) / ((double) totalSize);
     }
@@ -236,6 +350,183 @@ public class DlState implements Parcelable, Serializable {
         }
     }
 
+    public RateEstimator getRateEstimator() {
+        if (rateEstimator == null) rateEstimator = new RateEstimator();
+        return rateEstimator;
+    }
+
+    public long getEta() {
+        return totalSize == 0 ? -1 : getRateEstimator().getEta(totalSize - totalDone);
+    }
+
+    /* speed and time left, null until the rate is known */
+    public String getRateStr(Context ctx) {
+        long rate = getRateEstimator().getSmoothedRate();
+        if (rate < 0) return null;
+
+        String rateStr;
+        if (rate >= DlState.MBYTE_THRESH) {
+            rateStr = ctx.getString(R.string.downloads_rate_mb, (float) rate / DlState.SCALE_MBYTES);
+        } else if (rate >= DlState.KBYTE_THRESH) {
+            rateStr = ctx.getString(R.string.downloads_rate_kb, rate / DlState.SCALE_KBYTES);
+        } else {
+            rateStr = ctx.getString(R.string.downloads_rate_b, rate);
+        }
+
+        long eta = getEta();
+        if (eta < 0) return rateStr;
+        return ctx.getString(R.string.downloads_rate_eta, rateStr, DateUtils.formatElapsedTime(eta));
+    }
+
+    public boolean isSegmented() {
+        return segmentDone != null;
+    }
+
+    public int getNumSegments() {
+        return segmentDone == null ? 0 : segmentDone.length;
+    }
+
+    public void setupSegments(int numSegments) {
+        segmentStart = new long[numSegments];
+        segmentEnd = new long[numSegments];
+        segmentDone = new long[numSegments];
+
+        long segSize = totalSize / numSegments;
+        for (int q = 0; q < numSegments; q++) {
+            segmentStart[q] = q * segSize;
+            segmentEnd[q] = q == numSegments - 1 ? totalSize - 1 : (q + 1) * segSize - 1;
+        }
+    }
+
+    /* segments that only cover the given (inclusive) ranges, the rest of the file is already in place */
+    public void setupSegments(long[] starts, long[] ends) {
+        segmentStart = starts.clone();
+        segmentEnd = ends.clone();
+        segmentDone = new long[starts.length];
+    }
+
+    public void clearSegments() {
+        segmentStart = null;
+        segmentEnd = null;
+        segmentDone = null;
+    }
+
+    public long getSegmentStart(int seg) {
+        return segmentStart[seg];
+    }
+
+    public long getSegmentEnd(int seg) {
+        return segmentEnd[seg];
+    }
+
+    public long getSegmentDone(int seg) {
+        return segmentDone[seg];
+    }
+
+    public long getSegmentPos(int seg) {
+        return segmentStart[seg] + segmentDone[seg];
+    }
+
+    public boolean isSegmentComplete(int seg) {
+        return getSegmentPos(seg) > segmentEnd[seg];
+    }
+
+    public int nextIncompleteSegment(int from) {
+        for (int q = from; q < getNumSegments(); q++) {
+            if (!isSegmentComplete(q)) return q;
+        }
+        return -1;
+    }
+
+    /* progress from a state journal record, the segments and chunks only if their layout still matches */
+    public synchronized void restoreProgress(long totalDone, long[] segmentDone, Md5 digest, boolean[] chunkVerified) {
+        this.totalDone = totalDone;
+        if (this.segmentDone != null && segmentDone.length == this.segmentDone.length) this.segmentDone = segmentDone;
+        if (digest != null) this.digest = digest;
+        if (chunkVerified != null && this.chunkVerified != null && chunkVerified.length == this.chunkVerified.length) {
+            this.chunkVerified = chunkVerified;
+        }
+    }
+
+    /* moves every segment back by up to bytes, for data that may never have reached the file */
+    public synchronized void rollbackSegments(long bytes) {
+        for (int q = 0; q < segmentDone.length; q++) {
+            long back = Math.min(bytes, segmentDone[q]);
+            segmentDone[q] -= back;
+            totalDone -= back;
+        }
+    }
+
+    public synchronized void incSegmentDone(int seg, int inc) {
+        this.segmentDone[seg] += inc;
+        this.totalDone += inc;
+    }
+
+    /*
+     * Whether the (inclusive) range has been downloaded, ignoring the last slack bytes of
+     * each stream that may still sit in a write buffer. Bytes outside every segment of a
+     * segmented download were already in place before it started.
+     */
+    public synchronized boolean isRangeDone(long start, long end, long slack) {
+        if (!isSegmented()) return end < totalDone - slack;
+        for (int q = 0; q < segmentDone.length; q++) {
+            if (segmentEnd[q] < start || segmentStart[q] > end) continue;
+            if (Math.min(end, segmentEnd[q]) >= getSegmentPos(q) - slack) return false;
+        }
+        return true;
+    }
+
+    /* keeps what was verified if the chunk layout is the same as before */
+    public void setupChunks(int numChunks, int chunkSize) {
+        if (chunkVerified != null && chunkVerified.length == numChunks && this.chunkSize == chunkSize) return;
+        this.chunkSize = chunkSize;
+        this.chunkVerified = new boolean[numChunks];
+    }
+
+    public void clearChunks() {
+        chunkSize = 0;
+        chunkVerified = null;
+    }
+
+    public boolean hasChunks() {
+        return chunkVerified != null;
+    }
+
+    public int getNumChunks() {
+        return chunkVerified == null ? 0 : chunkVerified.length;
+    }
+
+    public int getNumVerifiedChunks() {
+        int n = 0;
+        for (int q = 0; q < getNumChunks(); q++) {
+            if (chunkVerified[q]) n++;
+        }
+        return n;
+    }
+
+    public boolean isChunkVerified(int chunk) {
+        return chunkVerified[chunk];
+    }
+
+    public void setChunkVerified(int chunk, boolean verified) {
+        chunkVerified[chunk] = verified;
+    }
+
+    /* the file is being rewritten from pos, so chunks reaching past it have to be checked again */
+    public void unverifyChunksFrom(long pos) {
+        for (int q = 0; q < getNumChunks(); q++) {
+            if ((long) (q + 1) * chunkSize > pos) chunkVerified[q] = false;
+        }
+    }
+
+    public Md5 getDigest() {
+        return digest;
+    }
+
+    public void setDigest(Md5 digest) {
+        this.digest = digest;
+    }
+
     public int getId() {
         return id;
     }
@@ -256,6 +547,14 @@ public class DlState implements Parcelable, Serializable {
         this.numFailed++;
     }
 
+    public int getNumReconnects() {
+        return numReconnects;
+    }
+
+    public synchronized void incNumReconnects() {
+        this.numReconnects++;
+    }
+
     public int getRetryAfter() {
         return retryAfter;
     }
@@ -264,6 +563,36 @@ public class DlState implements Parcelable, Serializable {
         this.retryAfter = retryAfter;
     }
 
+    public long getRetryAt() {
+        return retryAt;
+    }
+
+    public void setRetryAt(long retryAt) {
+        this.retryAt = retryAt;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /* the class moves up every DL_PRIORITY_AGING since it was queued, so lower classes can't starve */
+    public int getEffectivePriority(long now) {
+        if (queuedAt == 0) return priority;
+        return Math.max(PRIORITY_INTERACTIVE, priority - (int) ((now - queuedAt) / Config.DL_PRIORITY_AGING));
+    }
+
     public int getStatus() {
         return status;
     }
@@ -289,6 +618,24 @@ public class DlState implements Parcelable, Serializable {
         this.eTag = eTag;
     }
 
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public boolean hasValidator() {
+        return eTag != null || lastModified != null;
+    }
+
+    /* If-Range only takes a strong ETag, otherwise fall back to the Last-Modified date */
+    public String getRangeValidator() {
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return lastModified;
+    }
+
     public boolean isPausing() {
         return pausing;
     }
@@ -325,7 +672,18 @@ public class DlState implements Parcelable, Serializable {
         this.oneTimeNotifShown = oneTimeNotifShown;
     }
 
+    /* downloads that will not change again unless retried, kept in the DownloadRegistry */
+    public static final int[] FINISHED_STATUSES = new int[] { STATUS_CANCELLED_USER, STATUS_COMPLETED, STATUS_FAILED };
+
+    public boolean isFinished() {
+        return status == STATUS_CANCELLED_USER || status == STATUS_COMPLETED || status == STATUS_FAILED;
+    }
+
     public boolean matchesFilter(int filter) {
+        return matchesFilter(status, filter);
+    }
+
+    public static boolean matchesFilter(int status, int filter) {
         if (filter == FILTER_ALL) return true;
 
         if ((filter & FILTER_ACTIVE) != 0) {
@@ -378,6 +736,44 @@ public class DlState implements Parcelable, Serializable {
         return false;
     }
 
+    public ProgressSnapshot getSnapshot() {
+        ProgressSnapshot snapshot = new ProgressSnapshot();
+        snapshot.id = id;
+        snapshot.status = status;
+        snapshot.result = result == null ? -1 : result.ordinal();
+        snapshot.totalDone = totalDone;
+        snapshot.totalSize = totalSize;
+        snapshot.rate = getRateEstimator().getRate();
+        snapshot.smoothedRate = getRateEstimator().getSmoothedRate();
+        snapshot.averageRate = getRateEstimator().getAverageRate();
+        return snapshot;
+    }
+
+    /* client side, brings a state fetched earlier up to date */
+    public void applySnapshot(ProgressSnapshot snapshot) {
+        status = snapshot.status;
+        result = snapshot.result == -1 ? null : DownloadResult.values()[snapshot.result];
+        totalDone = snapshot.totalDone;
+        totalSize = snapshot.totalSize;
+        getRateEstimator().set(snapshot.rate, snapshot.smoothedRate, snapshot.averageRate);
+    }
+
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(buf);
+        os.writeObject(this);
+        os.close();
+        return buf.toByteArray();
+    }
+
+    public static DlState deserialize(byte[] data) throws IOException {
+        try {
+            return (DlState) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -395,11 +791,33 @@ public class DlState implements Parcelable, Serializable {
         dest.writeInt(status);
         dest.writeInt(numRedirects);
         dest.writeString(redirectedURL);
+        dest.writeInt(mirror);
+        dest.writeByte((byte) (delta ? 1 : 0));
         dest.writeInt(numFailed);
         dest.writeInt(retryAfter);
+        dest.writeLong(retryAt);
+        dest.writeInt(priority);
+        dest.writeLong(queuedAt);
+        dest.writeInt(numReconnects);
         dest.writeString(eTag);
+        dest.writeString(lastModified);
         dest.writeByte((byte) (pausing ? 1 : 0));
         dest.writeByte((byte) (continuing ? 1 : 0));
+        dest.writeInt(result == null ? -1 : result.ordinal());
+        dest.writeLong(getRateEstimator().getRate());
+        dest.writeLong(getRateEstimator().getSmoothedRate());
+        dest.writeLong(getRateEstimator().getAverageRate());
+
+        dest.writeInt(getNumSegments());
+        if (isSegmented()) {
+            dest.writeLongArray(segmentStart);
+            dest.writeLongArray(segmentEnd);
+            dest.writeLongArray(segmentDone);
+        }
+
+        dest.writeInt(chunkSize);
+        dest.writeInt(getNumChunks());
+        if (hasChunks()) dest.writeBooleanArray(chunkVerified);
     }
 
     public static final Creator<DlState> CREATOR = new Creator<DlState>() {
@@ -430,11 +848,31 @@ public class DlState implements Parcelable, Serializable {
             state.setStatus(source.readInt());
             state.setNumRedirects(source.readInt());
             state.setRedirectURL(source.readString());
+            state.mirror = source.readInt();
+            state.delta = source.readByte() == 1;
             state.setNumFailed(source.readInt());
             state.setRetryAfter(source.readInt());
+            state.setRetryAt(source.readLong());
+            state.setPriority(source.readInt());
+            state.setQueuedAt(source.readLong());
+            state.numReconnects = source.readInt();
             state.setETag(source.readString());
+            state.setLastModified(source.readString());
             state.setPausing(source.readByte() == 1);
             state.setContinuing(source.readByte() == 1);
+            int result = source.readInt();
+            if (result != -1) state.setResult(DownloadResult.values()[result]);
+            state.getRateEstimator().set(source.readLong(), source.readLong(), source.readLong());
+
+            int numSegments = source.readInt();
+            if (numSegments != 0) {
+                state.segmentStart = source.createLongArray();
+                state.segmentEnd = source.createLongArray();
+                state.segmentDone = source.createLongArray();
+            }
+
+            state.chunkSize = source.readInt();
+            if (source.readInt() != 0) state.chunkVerified = source.createBooleanArray();
 
             return state;
         }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Content-addressed index of finished downloads under Config.DL_PATH, keyed by md5 and
+ * checked against the recorded size, so the same build is only ever downloaded once no
+ * matter what file name it is queued under. Entries remember when they were last used,
+ * which QuotaManager evicts by.
+ */
+public class DownloadCache {
+    private static final String PREFS_NAME = "dl_cache";
+
+    private static DownloadCache instance = null;
+
+    private final SharedPreferences PREFS;
+
+    private DownloadCache(Context ctx) {
+        PREFS = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    public static synchronized DownloadCache getInstance(Context ctx) {
+        if (instance == null) instance = new DownloadCache(ctx);
+        return instance;
+    }
+
+    /* returns the cached file with this md5, or null if there is none or it was changed on disk */
+    public synchronized File get(String md5) {
+        Entry entry = getEntry(md5);
+        if (entry == null) return null;
+        if (!entry.file.isFile() || entry.file.length() != entry.size) {
+            Log.v(Config.LOG_TAG + "Cache", "dropping stale entry for " + entry.file);
+            PREFS.edit().remove(entry.md5).commit();
+            return null;
+        }
+        entry.used = System.currentTimeMillis();
+        putEntry(entry);
+        return entry.file;
+    }
+
+    public synchronized void put(String md5, File file) {
+        if (md5 == null || md5.length() == 0 || !file.isFile()) return;
+        putEntry(new Entry(md5.toLowerCase(), file, file.length(), System.currentTimeMillis()));
+    }
+
+    public synchronized void remove(String md5) {
+        if (md5 == null) return;
+        PREFS.edit().remove(md5.toLowerCase()).commit();
+    }
+
+    public synchronized void remove(File file) {
+        for (Entry entry : getEntries()) {
+            if (entry.file.equals(file)) PREFS.edit().remove(entry.md5).commit();
+        }
+    }
+
+    public synchronized Map<File, Long> getLastUsed() {
+        HashMap<File, Long> lastUsed = new HashMap<File, Long>();
+        for (Entry entry : getEntries()) lastUsed.put(entry.file, entry.used);
+        return lastUsed;
+    }
+
+    private Entry getEntry(String md5) {
+        if (md5 == null || md5.length() == 0) return null;
+        md5 = md5.toLowerCase();
+        String json = PREFS.getString(md5, null);
+        if (json == null) return null;
+        try {
+            return new Entry(md5, new JSONObject(json));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private ArrayList<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<String, ?> pref : PREFS.getAll().entrySet()) {
+            Entry entry = getEntry(pref.getKey());
+            if (entry != null) entries.add(entry);
+        }
+        return entries;
+    }
+
+    private void putEntry(Entry entry) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("path", entry.file.getAbsolutePath());
+            json.put("size", entry.size);
+            json.put("used", entry.used);
+            PREFS.edit().putString(entry.md5, json.toString()).commit();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Entry {
+        private final String md5;
+        private final File file;
+        private final long size;
+        private long used;
+
+        public Entry(String md5, File file, long size, long used) {
+            this.md5 = md5;
+            this.file = file;
+            this.size = size;
+            this.used = used;
+        }
+
+        public Entry(String md5, JSONObject json) throws JSONException {
+            this(md5, new File(json.getString("path")), json.getLong("size"), json.getLong("used"));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/*
+ * Persistent registry of every download, one row per download id with the serialized
+ * DlState next to indexed status, type/name and md5 columns. Finished downloads live
+ * only here, so the service keeps just the unfinished ones in memory and history is read a
+ * page at a time through the indexes instead of being deserialized on every start. Rows of
+ * unfinished downloads are only updated on status changes, their live state is the service's.
+ * Writes go to the database on a background thread, and reads wait for the writes queued before them.
+ */
+public class DownloadRegistry extends SQLiteOpenHelper {
+    private static final String DB_NAME = "downloads.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String TABLE = "downloads";
+    private static final String COL_ID = "_id";
+    private static final String COL_TYPE = "type";
+    private static final String COL_STATUS = "status";
+    private static final String COL_NAME = "name";
+    private static final String COL_MD5 = "md5";
+    private static final String COL_UPDATED = "updated";
+    private static final String COL_STATE = "state";
+
+    public static final int TYPE_ROM = 1;
+    public static final int TYPE_KERNEL = 2;
+
+    private static DownloadRegistry instance = null;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private DownloadRegistry(Context ctx) {
+        super(ctx.getApplicationContext(), DB_NAME, null, DB_VERSION);
+    }
+
+    public static synchronized DownloadRegistry getInstance(Context ctx) {
+        if (instance == null) instance = new DownloadRegistry(ctx);
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                COL_ID + " INTEGER PRIMARY KEY, " +
+                COL_TYPE + " INTEGER NOT NULL, " +
+                COL_STATUS + " INTEGER NOT NULL, " +
+                COL_NAME + " TEXT, " +
+                COL_MD5 + " TEXT, " +
+                COL_UPDATED + " INTEGER NOT NULL, " +
+                COL_STATE + " BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_status ON " + TABLE + " (" + COL_STATUS + ", " + COL_UPDATED + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_type ON " + TABLE + " (" + COL_TYPE + ", " + COL_NAME + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_md5 ON " + TABLE + " (" + COL_MD5 + ")");
+    }
+
+    /* the rows are only a cache of the journal and history, so an old schema is simply dropped */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /* the state is serialized right away, the insert happens on the writer thread */
+    public void put(DlState state) {
+        ContentValues values = new ContentValues();
+        values.put(COL_ID, state.getId());
+        values.put(COL_TYPE, state.isRomDownload() ? TYPE_ROM : TYPE_KERNEL);
+        values.put(COL_STATUS, state.getStatus());
+        values.put(COL_NAME, state.getName());
+        values.put(COL_MD5, state.getTargetMd5() == null ? null : state.getTargetMd5().toLowerCase());
+        values.put(COL_UPDATED, System.currentTimeMillis());
+        try {
+            values.put(COL_STATE, state.serialize());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final ContentValues row = values;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                getWritableDatabase().insertWithOnConflict(TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        });
+    }
+
+    /* a download evicted from the service may still have its row in the writer's queue */
+    private void waitForWrites() {
+        try {
+            writer.submit(NOOP).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public DlState get(int id) {
+        waitForWrites();
+        Cursor c = getReadableDatabase().query(TABLE, new String[] { COL_STATE },
+                COL_ID + " = ?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            return c.moveToFirst() ? readState(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /* most recently updated first, a limit of 0 returns them all */
+    public void getByStatus(List<DlState> list, int[] statuses, int limit) {
+        if (statuses.length == 0) return;
+        StringBuilder where = new StringBuilder(COL_STATUS + " IN (");
+        String[] args = new String[statuses.length];
+        for (int q = 0; q < statuses.length; q++) {
+            where.append(q == 0 ? "?" : ", ?");
+            args[q] = String.valueOf(statuses[q]);
+        }
+        where.append(")");
+        query(list, where.toString(), args, limit);
+    }
+
+    /* every download of a ROM or kernel by its name, e.g. all builds of one ROM */
+    public void getByName(List<DlState> list, int type, String name) {
+        query(list, COL_TYPE + " = ? AND " + COL_NAME + " = ?", new String[] { String.valueOf(type), name }, 0);
+    }
+
+    /* the most recent completed download of a build with this md5 */
+    public DlState findCompleted(String md5) {
+        waitForWrites();
+        Cursor c = getReadableDatabase().query(TABLE, new String[] { COL_STATE },
+                COL_MD5 + " = ? AND " + COL_STATUS + " = ?", new String[] { md5.toLowerCase(), String.valueOf(DlState.STATUS_COMPLETED) },
+                null, null, COL_UPDATED + " DESC", "1");
+        try {
+            return c.moveToFirst() ? readState(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void query(List<DlState> list, String where, String[] args, int limit) {
+        waitForWrites();
+        Cursor c = getReadableDatabase().query(TABLE, new String[] { COL_STATE }, where, args,
+                null, null, COL_UPDATED + " DESC", limit > 0 ? String.valueOf(limit) : null);
+        try {
+            while (c.moveToNext()) {
+                DlState state = readState(c);
+                if (state != null) list.add(state);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static DlState readState(Cursor c) {
+        try {
+            return DlState.deserialize(c.getBlob(0));
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "Registry", "unreadable download state: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -17,12 +17,17 @@
 package com.otaupdater.utils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
@@ -30,17 +35,22 @@ import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.HttpConnectionParams;
 
 import android.content.Context;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
-import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.otaupdater.DownloadService;
 import com.otaupdater.utils.DownloadTask.DownloadResult;
+import com.otaupdater.utils.MirrorProber.Mirror;
 
 public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
     private Context context;
@@ -51,6 +61,34 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
     private boolean active = false;
     private boolean pausing = false;
+    private int pauseStatus = DlState.STATUS_PAUSED_USER;
+    private int maxConnections = Integer.MAX_VALUE;
+    private volatile int connections = 1;
+    private volatile boolean connectionsReleased = false;
+
+    private static final long SEGMENT_POLL_DELAY = 250;
+    private static final long THROTTLE_SLICE = 100;
+    private static final long UNFLUSHED_MAX = BufferPool.MAX_SIZE; //most a ChannelWriter holds back from disk
+
+    private static final Boolean[] NO_FLAGS = new Boolean[0];
+    private volatile boolean progressPending = false;
+    private long lastProgressTime = 0;
+    private long lastProgressBytes = 0;
+
+    private final BandwidthLimiter limiter = new BandwidthLimiter();
+
+    private List<Mirror> mirrors = null;
+    private final HashSet<Integer> failedMirrors = new HashSet<Integer>();
+    private long windowStart = 0;
+    private long windowBytes = 0;
+    private long bestRate = 0;
+    private int reconnects = 0;
+    private long reconnectDone = -1;
+
+    private ChunkManifest chunks = null;
+    private boolean chunksLoaded = false;
+    private long chunkCheckAt = 0;
+    private long streamCounted = 0;
 
     public DownloadTask(DlState state, Context ctx) {
         this(state, ctx, null);
@@ -72,6 +110,32 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         return state;
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /* sets the most connections this download may open, which it holds until it knows how many it needs */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.connections = this.maxConnections;
+    }
+
+    /* connections currently held against the host's budget */
+    public int getConnections() {
+        return connections;
+    }
+
+    /* called from the download thread; the listener hears about it on the main thread */
+    private void setConnections(int connections) {
+        if (connections >= this.connections) {
+            this.connections = connections;
+            return;
+        }
+        this.connections = connections;
+        connectionsReleased = true;
+        publishProgress(NO_FLAGS);
+    }
+
     @Override
     protected void onPreExecute() {
         active = true;
@@ -80,11 +144,381 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
     @Override
     protected DownloadResult doInBackground(Void... params) {
-        AndroidHttpClient httpc = null;
+        if (state.isDelta() && state.getRomInfo().getDeltaBaseFile() == null) fallBackToFull();
+        probeMirrors();
+        state.getRateEstimator().start(state.getTotalDone());
+
+        while (true) {
+            DownloadResult result = runDownload();
+            if (result == null) continue;
+
+            // only a patch that can't be applied falls back, a failed delta download fails as usual
+            if (state.isDelta() && result == DownloadResult.FINISHED) {
+                result = applyDelta();
+                if (state.getStatus() == DlState.STATUS_FAILED) {
+                    fallBackToFull();
+                    probeMirrors();
+                    continue;
+                }
+            }
+
+            SharedHttpClient.logStats();
+            return result;
+        }
+    }
+
+    private void probeMirrors() {
+        mirrors = null;
+        failedMirrors.clear();
+
+        String[] urls = state.getMirrors();
+        if (urls.length > 1) {
+            mirrors = new MirrorProber(urls).probe(Config.DL_MIRROR_PROBE_TIMEOUT);
+            Mirror best = findMirror();
+            if (best != null) useMirror(best);
+        }
+    }
+
+    private DownloadResult applyDelta() {
+        File patch = state.getDestFile();
+        File base = state.getRomInfo().getDeltaBaseFile();
+        File dest = new File(Config.ROM_DL_PATH_FILE, state.getRomInfo().getDownloadFileName());
+        if (base == null) {
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_FILE_NOT_FOUND);
+        }
+
+        Log.v(Config.LOG_TAG + "DLTask", "applying delta " + patch.getName() + " to " + base.getName());
+        Md5 digest = new Md5();
+        try {
+            long size = DeltaPatcher.apply(base, patch, dest, digest);
+            patch.delete();
+
+            state.setDelta(false);
+            state.clearSegments();
+            state.setETag(null);
+            state.setTotalSize(size);
+            state.setTotalDone(size);
+            state.setDigest(digest);
+            publishProgress(true);
+            return verifyDownload(dest);
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "failed to apply delta: " + e.getMessage());
+            dest.delete();
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_UNKNOWN);
+        }
+    }
+
+    private void fallBackToFull() {
+        Log.w(Config.LOG_TAG + "DLTask", "delta update not usable, falling back to the full download");
+        File patch = state.getDestFile();
+        if (state.isDelta()) patch.delete();
+
+        int status = state.getStatus();
+        long queuedAt = state.getQueuedAt(); //keeps its place in the priority aging
+        state.resetState();
+        state.setQueuedAt(queuedAt);
+        state.setDelta(false);
+        state.setStatus(status == DlState.STATUS_FAILED ? DlState.STATUS_RUNNING : status);
+        publishProgress(true);
+    }
+
+    private Mirror findMirror() {
+        if (mirrors == null) return null;
+        boolean resuming = state.getTotalDone() != 0 || state.isSegmented();
+        for (Mirror mirror : mirrors) {
+            if (!mirror.isOk() || failedMirrors.contains(mirror.getIndex())) continue;
+            if (state.getTotalSize() != 0 && mirror.getSize() != -1 && mirror.getSize() != state.getTotalSize()) continue;
+            if (resuming) {
+                if (!mirror.supportsRanges() || mirror.getETag() == null) continue;
+                // a different ETag is only acceptable when the md5 will catch a different file
+                if (!mirror.getETag().equals(state.getETag()) && (state.getMd5() == null || state.getMd5().length() == 0)) continue;
+            }
+            return mirror;
+        }
+        return null;
+    }
+
+    private void useMirror(Mirror mirror) {
+        if (mirror.getIndex() == state.getMirror()) return;
+        Log.v(Config.LOG_TAG + "DLTask", "using mirror " + mirror.getUrl());
+        state.setMirror(mirror.getIndex());
+        if (state.getTotalDone() != 0 || state.isSegmented()) {
+            state.setETag(mirror.getETag());
+            state.setLastModified(null);
+        }
+    }
+
+    /* returns true if the download should be restarted from its checkpoint on another mirror */
+    private synchronized boolean failover() {
+        if (mirrors == null || isCancelled()) return false;
+        failedMirrors.add(state.getMirror());
+        Mirror next = findMirror();
+        if (next == null) return false;
+        Log.w(Config.LOG_TAG + "DLTask", "failing over to mirror " + next.getUrl());
+        useMirror(next);
+        return true;
+    }
+
+    /* resumes within this task from what is on disk, giving up after DL_MAX_RECONNECTS in a row without progress */
+    private synchronized boolean reconnect() {
+        if (isCancelled()) return false;
+        if (state.getTotalDone() > reconnectDone) reconnects = 0;
+        if (reconnects >= Config.DL_MAX_RECONNECTS) return false;
+        reconnects++;
+        reconnectDone = state.getTotalDone();
+        state.incNumReconnects();
+        Log.w(Config.LOG_TAG + "DLTask", "reconnecting at " + state.getTotalDone() + ", attempt " + reconnects);
+        return true;
+    }
+
+    private boolean checkThroughput(int nRead) {
+        if (mirrors == null || !limiter.isUnlimited() || !BandwidthLimiter.getGlobal().isUnlimited()) return true;
+
+        long now = System.currentTimeMillis();
+        if (windowStart == 0) windowStart = now;
+        windowBytes += nRead;
+        if (now - windowStart < Config.DL_MIRROR_RATE_WINDOW) return true;
+
+        long rate = windowBytes * 1000 / (now - windowStart);
+        windowStart = now;
+        windowBytes = 0;
+        if (rate > bestRate) bestRate = rate;
+        if (rate * Config.DL_MIRROR_SLOW_FACTOR >= bestRate) return true;
+
+        Log.w(Config.LOG_TAG + "DLTask", "throughput dropped to " + rate + "B/s (best " + bestRate + "B/s)");
+        return !failover();
+    }
+
+    /*
+     * zsync style reuse: if the server publishes a block manifest next to the zip, blocks
+     * found in older zips are copied into place and only the missing ranges are left as
+     * segments for the normal segmented download to fetch.
+     */
+    private boolean prepareBlockReuse(File dest) {
+        File[] candidates = Config.ROM_DL_PATH_FILE.listFiles();
+        if (candidates == null) return false;
+        List<File> inUse = callback == null ? new ArrayList<File>() : callback.getFilesInUse();
+        ArrayList<File> locals = new ArrayList<File>();
+        for (File f : candidates) {
+            if (isReusable(f, dest, inUse)) locals.add(f);
+        }
+        if (locals.isEmpty()) return false;
+        Collections.sort(locals, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.valueOf(rhs.lastModified()).compareTo(lhs.lastModified());
+            }
+        });
+
+        BlockManifest manifest = fetchBlockManifest(state.getSourceURL() + Config.DL_BLOCK_MANIFEST_SUFFIX);
+        if (manifest == null) return false;
+
+        BlockMatcher matcher = new BlockMatcher(manifest);
+        try {
+            for (int q = 0; q < locals.size() && q < Config.DL_BLOCK_MAX_CANDIDATES && !matcher.isComplete(); q++) {
+                if (isCancelled()) return false;
+                int found = matcher.scan(locals.get(q));
+                Log.v(Config.LOG_TAG + "DLTask", "found " + found + " blocks in " + locals.get(q).getName());
+            }
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "block scan failed: " + e.getMessage());
+            return false;
+        }
+        if (matcher.getMatchedBytes() * 100 < manifest.getSize() * Config.DL_BLOCK_MIN_REUSE_PCT) return false;
+
+        Mirror zip = new MirrorProber(new String[] { state.getSourceURL() }).probe(Config.DL_MIRROR_PROBE_TIMEOUT).get(0);
+        if (!zip.isOk() || !zip.supportsRanges() || zip.getETag() == null || zip.getSize() != manifest.getSize()) return false;
+
+        RangeCoalescer missing = new RangeCoalescer();
+        for (int q = 0; q < manifest.getNumBlocks(); q++) {
+            if (!matcher.isMatched(q)) missing.add(manifest.getBlockStart(q), manifest.getBlockEnd(q));
+        }
+        missing.coalesce(Config.DL_BLOCK_MAX_GAP, Config.DL_BLOCK_MAX_RANGES);
+
+        // the copied blocks take space like downloaded ones, without room the normal path fails the download
+        state.setTotalSize(manifest.getSize());
+        if (!reserveSpace(dest)) {
+            Log.w(Config.LOG_TAG + "DLTask", "no space to reuse local blocks");
+            return false;
+        }
+
+        try {
+            copyLocalBlocks(manifest, matcher, missing, dest);
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "DLTask", "block copy failed: " + e.getMessage());
+            dest.delete();
+            return false;
+        }
+
+        long[] starts = new long[missing.size()];
+        long[] ends = new long[missing.size()];
+        for (int q = 0; q < starts.length; q++) {
+            starts[q] = missing.getStart(q);
+            ends[q] = missing.getEnd(q);
+        }
+        state.setupSegments(starts, ends);
+        state.setTotalSize(manifest.getSize());
+        state.setTotalDone(manifest.getSize() - missing.getTotalBytes());
+        state.setETag(zip.getETag());
+        state.setDigest(null);
+        state.setContinuing(true);
+        publishProgress(true);
+
+        Log.v(Config.LOG_TAG + "DLTask", "reused " + state.getTotalDone() + " bytes locally, fetching " +
+                missing.getTotalBytes() + " bytes in " + missing.size() + " ranges");
+        return true;
+    }
+
+    /*
+     * Only finished zips are scanned for blocks. Files of queued or running downloads are
+     * partial, and so is a zip a delta is being applied into. Delta patches are named
+     * <zip>.delta, so the suffix test leaves them out.
+     */
+    private static boolean isReusable(File f, File dest, List<File> inUse) {
+        if (!f.isFile() || f.equals(dest) || inUse.contains(f)) return false;
+        return f.getName().endsWith(".zip");
+    }
+
+    private BlockManifest fetchBlockManifest(String url) {
+        HttpGet req = new HttpGet(url);
+        try {
+            InputStream in = openSideFile(req);
+            if (in == null) return null;
+            try {
+                return BlockManifest.parse(in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "DLTask", "no usable block manifest: " + e.getMessage());
+            req.abort();
+            return null;
+        }
+    }
+
+    private ChunkManifest fetchChunkManifest(String url) {
+        HttpGet req = new HttpGet(url);
+        try {
+            InputStream in = openSideFile(req);
+            if (in == null) return null;
+            try {
+                return ChunkManifest.parse(in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "DLTask", "no usable chunk manifest: " + e.getMessage());
+            req.abort();
+            return null;
+        }
+    }
+
+    /* body of a small file published next to the zip, null if there is none */
+    private static InputStream openSideFile(HttpGet req) throws IOException {
+        HttpResponse resp = SharedHttpClient.get().execute(req);
+        if (resp.getStatusLine().getStatusCode() != 200 || resp.getEntity() == null) {
+            if (resp.getEntity() != null) resp.getEntity().consumeContent();
+            return null;
+        }
+        return resp.getEntity().getContent();
+    }
+
+    private void loadChunkManifest() {
+        chunksLoaded = true;
+        if ("http".equals(Uri.parse(state.getSourceURL()).getScheme())) {
+            chunks = fetchChunkManifest(state.getSourceURL() + Config.DL_CHUNK_MANIFEST_SUFFIX);
+        }
+        if (chunks == null) {
+            state.clearChunks();
+        } else {
+            state.setupChunks(chunks.getNumChunks(), chunks.getChunkSize());
+            Log.v(Config.LOG_TAG + "DLTask", "verifying " + chunks.getNumChunks() + " chunks of " + chunks.getChunkSize() +
+                    " bytes, " + state.getNumVerifiedChunks() + " already done");
+        }
+    }
+
+    /*
+     * Hashes every chunk that is fully on disk and not verified yet. A bad chunk is fetched
+     * again on its own with a range request, the rest of the file is left alone. Returns
+     * false if the server sends the same bad data again.
+     */
+    private boolean checkChunks(File dest, long slack) throws IOException {
+        if (chunks == null || chunks.getSize() != state.getTotalSize()) return true;
+        for (int q = 0; q < chunks.getNumChunks(); q++) {
+            if (state.isChunkVerified(q) || !state.isRangeDone(chunks.getChunkStart(q), chunks.getChunkEnd(q), slack)) continue;
+            if (chunks.verify(q, dest)) {
+                state.setChunkVerified(q, true);
+                continue;
+            }
+
+            Log.w(Config.LOG_TAG + "DLTask", "chunk " + q + " is corrupt, fetching it again");
+            byte[] data = fetchRange(chunks.getChunkStart(q), chunks.getChunkLength(q));
+            if (data == null || !chunks.matches(q, data)) {
+                Log.w(Config.LOG_TAG + "DLTask", "chunk " + q + " could not be repaired");
+                return false;
+            }
+            RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+            try {
+                raf.seek(chunks.getChunkStart(q));
+                raf.write(data);
+            } finally {
+                raf.close();
+            }
+            state.setChunkVerified(q, true);
+            // the running md5 saw the bad bytes, it is redone from disk when the download completes
+            state.setDigest(null);
+        }
+        return true;
+    }
+
+    private void copyLocalBlocks(BlockManifest manifest, BlockMatcher matcher, RangeCoalescer missing, File dest) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(dest, "rw");
+        RandomAccessFile src = null;
+        File curSrc = null;
+        ByteBuffer buf = BufferPool.acquire(manifest.getBlockSize());
+        try {
+            out.setLength(manifest.getSize());
+            byte[] b = buf.array();
+            for (int q = 0; q < manifest.getNumBlocks(); q++) {
+                if (!matcher.isMatched(q)) continue;
+                long start = manifest.getBlockStart(q);
+                if (missing.contains(start, manifest.getBlockEnd(q))) continue;
+
+                if (!matcher.getSource(q).equals(curSrc)) {
+                    if (src != null) src.close();
+                    curSrc = matcher.getSource(q);
+                    src = new RandomAccessFile(curSrc, "r");
+                }
+                src.seek(matcher.getSourceOffset(q));
+                out.seek(start);
+                for (int left = manifest.getBlockSize(); left > 0; ) {
+                    int n = Math.min(left, b.length);
+                    src.readFully(b, 0, n);
+                    out.write(b, 0, n);
+                    left -= n;
+                }
+            }
+        } finally {
+            BufferPool.release(buf);
+            if (src != null) src.close();
+            out.close();
+        }
+    }
+
+    private DownloadResult runDownload() {
+        windowStart = 0;
+        windowBytes = 0;
+        bestRate = 0;
+        StallMonitor stall = new StallMonitor();
+        chunkCheckAt = 0;
+
+        HttpGet req = null;
         FTPClient ftpc = null;
 
         InputStream in = null;
-        OutputStream out = null;
+        ChannelWriter out = null;
         try {
             File dest = state.getDestFile();
             File dir = dest.getParentFile();
@@ -98,26 +532,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 return state.setResult(DownloadResult.FAILED_MOUNT_NOT_AVAILABLE);
             }
 
-            if (dest.exists()) {
-                if (dest.length() == 0) {
-                    dest.delete();
-                } else if (state.getTotalDone() == state.getTotalSize() && dest.length() == state.getTotalDone()) {
-                    state.setStatus(DlState.STATUS_COMPLETED);
-                    return state.setResult(DownloadResult.FINISHED);
-                } else {
-                    if (dest.length() != state.getTotalDone()) {
-                        dest.delete();
-                    } else {
-                        if (state.getETag() == null) {
-                            dest.delete();
-                        } else {
-                            state.setContinuing(true);
-                            out = new FileOutputStream(dest, true);
-                        }
-                    }
-                }
-            }
-
+            // check the network first, fetching the side files and validating the tail are requests too
             if (callback != null) {
                 int checkResult = callback.onCheckContinue(state);
                 if (checkResult != 0) {
@@ -132,41 +547,90 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 }
             }
 
+            if (!chunksLoaded && !state.isDelta()) loadChunkManifest();
+
+            state.setContinuing(false);
+            if (dest.exists()) {
+                if (dest.length() == 0) {
+                    dest.delete();
+                } else if (state.getTotalDone() == state.getTotalSize() && dest.length() == state.getTotalDone()) {
+                    // progress only counts flushed bytes, so a full count means every byte reached the file
+                    return verifyDownload(dest);
+                } else if (state.isSegmented()) {
+                    if (dest.length() != state.getTotalSize() || !state.hasValidator()) {
+                        dest.delete();
+                    } else {
+                        // the file is preallocated, so its length says nothing about the holes a lost write buffer left.
+                        // the digest only covers flushed bytes, the refetch skips what it already has
+                        state.rollbackSegments(UNFLUSHED_MAX);
+                        state.setContinuing(true);
+                    }
+                } else {
+                    // resume from the last checkpoint that is both on disk and still matches the server
+                    long checkpoint = validateTail(dest, Math.min(state.getTotalDone(), dest.length()));
+                    if (checkpoint == 0) {
+                        dest.delete();
+                    } else {
+                        if (dest.length() != state.getTotalSize()) setFileLength(dest, checkpoint);
+                        state.setTotalDone(checkpoint);
+                        state.unverifyChunksFrom(checkpoint);
+                        state.setContinuing(true);
+                        out = openWriter(dest, checkpoint, -1);
+                    }
+                }
+            }
+            if (!state.isContinuing()) {
+                state.setTotalDone(0);
+                state.clearSegments();
+                state.unverifyChunksFrom(0);
+                state.setDigest(new Md5());
+            } else if (!state.isSegmented()) {
+                // a digest past the checkpoint is kept, the writer skips the bytes it already covers
+                Md5 digest = state.getDigest();
+                if (digest == null || digest.getCount() < state.getTotalDone()) catchUpDigest(dest, state.getTotalDone());
+            }
+
+            if (!state.isContinuing() && state.isRomDownload() && !state.isDelta() &&
+                    "http".equals(Uri.parse(state.getSourceURL()).getScheme()) && prepareBlockReuse(dest)) {
+                if (state.nextIncompleteSegment(0) == -1) return verifyDownload(dest);
+            }
+
+            int numSegments = Math.min(Config.getInstance(context).getDlSegments(), maxConnections);
+            boolean probeRanges = !state.isContinuing() && numSegments > 1;
+            int firstSegment = state.isContinuing() && state.isSegmented() ? state.nextIncompleteSegment(0) : 0;
+
             Uri dlUri = Uri.parse(state.getSourceURL());
             if (dlUri.getScheme().equals("http")) {
-                httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, context);
+                HttpClient httpc = SharedHttpClient.get();
                 HttpResponse resp = null;
+                int statusCode = 0;
                 while (true) {
-                    HttpGet req = null;
                     boolean success = false;
                     try {
                         req = new HttpGet(state.getSourceURL());
+                        HttpClientParams.setRedirecting(req.getParams(), false);
+                        HttpConnectionParams.setSoTimeout(req.getParams(), Config.DL_STALL_TIMEOUT);
                         if (state.isContinuing()) {
-                            req.addHeader("If-Match", state.getETag());
-                            req.addHeader("Range", "bytes=" + state.getTotalDone() + "-");
+                            if (state.isSegmented()) {
+                                addValidator(req);
+                                req.addHeader("Range", "bytes=" + state.getSegmentPos(firstSegment) + "-" + state.getSegmentEnd(firstSegment));
+                            } else {
+                                if (state.getRangeValidator() != null) req.addHeader("If-Range", state.getRangeValidator());
+                                req.addHeader("Range", "bytes=" + state.getTotalDone() + "-");
+                            }
+                        } else if (probeRanges) {
+                            req.addHeader("Range", "bytes=0-");
                         }
                         resp = httpc.execute(req);
 
-                        int statusCode = resp.getStatusLine().getStatusCode();
+                        statusCode = resp.getStatusLine().getStatusCode();
+                        if ((statusCode == 503 || statusCode == 404 || statusCode >= 500) && failover()) return null;
                         if (statusCode == 503) {
                             if (state.getNumFailed() >= Config.DL_MAX_RETRIES) {
                                 state.setStatus(DlState.STATUS_FAILED);
                                 return state.setResult(DownloadResult.FAILED_TOO_MANY_RETRIES);
                             }
-                            Header header = resp.getFirstHeader("Retry-After");
-                            if (header == null) {
-                                state.setRetryAfter(Config.DL_RETRY_MIN * (1 << state.getNumFailed()));
-                            } else {
-                                int retry = Integer.parseInt(header.getValue());
-                                if (retry < 0) {
-                                    state.setRetryAfter(Config.DL_RETRY_MIN);
-                                } else {
-                                    if (retry < Config.DL_RETRY_MIN) retry = Config.DL_RETRY_MIN;
-                                    if (retry > Config.DL_RETRY_MAX) retry = Config.DL_RETRY_MAX;
-                                    retry += (int) (Config.DL_RETRY_MIN * Math.random());
-                                    state.setRetryAfter(retry);
-                                }
-                            }
+                            setRetryAfter(resp.getFirstHeader("Retry-After"));
                             state.incNumFailed();
                             state.setStatus(DlState.STATUS_PAUSED_RETRY);
                             return state.setResult(DownloadResult.RETRY_LATER);
@@ -190,8 +654,23 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                             }
                             state.incNumRedirects();
                             state.setRedirectURL(newUri);
+
+                            // drain the redirect body so the hop's connection goes back to the pool
+                            if (resp.getEntity() != null) resp.getEntity().consumeContent();
+                            success = true;
+                            continue;
+                        }
+                        if (statusCode == 200 && state.isContinuing() && !state.isSegmented()) {
+                            // If-Range failed or ranges are ignored, the body is the whole current file
+                            Log.w(Config.LOG_TAG + "DLTask", "partial file no longer valid, restarting");
+                            out.close();
+                            out = null;
+                            state.setContinuing(false);
+                            state.setTotalDone(0);
+                            state.unverifyChunksFrom(0);
+                            state.setDigest(new Md5());
                         }
-                        if (statusCode != (state.isContinuing() ? 206 : 200)) {
+                        if (statusCode != (state.isContinuing() ? 206 : 200) && !(probeRanges && statusCode == 206)) {
                             state.setStatus(DlState.STATUS_FAILED);
                             if (statusCode == 416 || (state.isContinuing() && statusCode != 206)) {
                                 return state.setResult(DownloadResult.FAILED_CANNOT_RESUME);
@@ -210,6 +689,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                         state.setStatus(DlState.STATUS_FAILED);
                         return state.setResult(DownloadResult.FAILED_PROTOCAL_ERROR);
                     } catch (IOException e) {
+                        if (Utils.dataAvailable(context) && failover()) return null;
                         state.setStatus(DlState.STATUS_FAILED);
                         return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
                     } finally {
@@ -222,7 +702,9 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
                 if (!state.isContinuing()) {
                     Header header = resp.getFirstHeader("ETag");
-                    if (header != null) state.setETag(header.getValue());
+                    state.setETag(header == null ? null : header.getValue());
+                    header = resp.getFirstHeader("Last-Modified");
+                    state.setLastModified(header == null ? null : header.getValue());
 
                     String headerTransferEncoding = null;
                     header = resp.getFirstHeader("Transfer-Encoding");
@@ -236,23 +718,47 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                             publishProgress(true);
                         }
                     }
+                    if (statusCode == 206) {
+                        long rangeTotal = parseContentRangeTotal(resp.getFirstHeader("Content-Range"));
+                        if (rangeTotal != -1) state.setTotalSize(rangeTotal);
+                    }
 
-                    if (state.getTotalSize() != 0) {
-                        StatFs stat = new StatFs(dir.getAbsolutePath());
-                        long availSpace = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
-                        if (state.getTotalSize() >= availSpace) {
-                            state.setStatus(DlState.STATUS_FAILED);
-                            return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
-                        }
+                    if (state.getTotalSize() != 0 && !reserveSpace(dest)) {
+                        state.setStatus(DlState.STATUS_FAILED);
+                        return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
                     }
 
-                    out = new FileOutputStream(dest, false);
+                    if (statusCode == 206 && state.hasValidator() &&
+                            state.getTotalSize() >= numSegments * Config.DL_SEGMENT_MIN_SIZE) {
+                        state.setupSegments(numSegments);
+                        setFileLength(dest, state.getTotalSize());
+                        Log.v(Config.LOG_TAG + "DLTask", "server supports ranges, using " + numSegments + " segments");
+                    } else {
+                        out = openWriter(dest, 0, state.getTotalSize());
+                    }
                 } else {
+                    long expected = state.isSegmented() ? state.getSegmentEnd(firstSegment) - state.getSegmentPos(firstSegment) + 1 :
+                            state.getTotalSize() == 0 ? -1 : state.getTotalSize() - state.getTotalDone();
+                    if (!hasLength(resp, expected)) {
+                        Log.w(Config.LOG_TAG + "DLTask", "resumed response has the wrong length, expected " + expected);
+                        state.setStatus(DlState.STATUS_FAILED);
+                        return state.setResult(DownloadResult.FAILED_CANNOT_RESUME);
+                    }
                     publishProgress(true);
                 }
 
                 in = resp.getEntity().getContent();
+
+                setConnections(state.isSegmented() ? numSegments : 1);
+                if (state.isSegmented()) {
+                    InputStream firstIn = in;
+                    HttpGet firstReq = req;
+                    in = null;
+                    req = null;
+                    return downloadSegments(dest, firstSegment, firstReq, firstIn);
+                }
             } else if (dlUri.getScheme().equals("ftp")) {
+                setConnections(1);
                 ftpc = new FTPClient();
 
                 if (dlUri.getPort() == -1) {
@@ -262,6 +768,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                 }
 
                 if (!FTPReply.isPositiveCompletion(ftpc.getReplyCode())) {
+                    if (failover()) return null;
                     state.setStatus(DlState.STATUS_FAILED);
                     return state.setResult(DownloadResult.FAILED_CONNECTION_REFUSED);
                 }
@@ -294,28 +801,28 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                         state.setTotalSize(files[0].getSize());
                         publishProgress(true);
 
-                        StatFs stat = new StatFs(dir.getAbsolutePath());
-                        long availSpace = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
-                        if (state.getTotalSize() >= availSpace) {
+                        if (!reserveSpace(dest)) {
                             state.setStatus(DlState.STATUS_FAILED);
                             return state.setResult(DownloadResult.FAILED_NOT_ENOUGH_SPACE);
                         }
 
-                        out = new FileOutputStream(dest, false);
+                        out = openWriter(dest, 0, state.getTotalSize());
                     }
                 }
 
+                ftpc.setDataTimeout(Config.DL_STALL_TIMEOUT);
                 in = ftpc.retrieveFileStream(dlUri.getPath());
             } else {
                 Log.e(Config.LOG_TAG + "DLTask", "invalid scheme " + dlUri.getScheme());
             }
 
-            byte[] buf = new byte[4096];
+            out.setDigest(state.getDigest());
+            streamCounted = 0;
             while (true) {
                 if (this.isCancelled()) {
                     if (pausing) {
-                        Log.v(Config.LOG_TAG + "DLTask", "pausing - user request");
-                        state.setStatus(DlState.STATUS_PAUSED_USER);
+                        Log.v(Config.LOG_TAG + "DLTask", "pausing - status " + pauseStatus);
+                        state.setStatus(pauseStatus);
                         return state.setResult(DownloadResult.PAUSED);
                     } else {
                         Log.v(Config.LOG_TAG + "DLTask", "cancel - user request");
@@ -340,7 +847,7 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
 
                 int nRead = -1;
                 try {
-                    nRead = in.read(buf);
+                    nRead = out.readFrom(in, readLimit());
                 } catch (IOException e) {
                     boolean data = Utils.dataAvailable(context);
                     Log.w(Config.LOG_TAG + "DLTask", "IOException reading - connected=" + data);
@@ -350,26 +857,48 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
                         state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
                         return state.setResult(DownloadResult.PAUSED);
                     }
-                    continue;
+                    if (failover() || reconnect()) return null;
+                    state.setStatus(DlState.STATUS_FAILED);
+                    return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
                 }
 
                 if (nRead == -1) break;
 
-                out.write(buf, 0, nRead);
-                state.incTotalDone(nRead);
-                publishProgress();
+                countFlushed(out);
+                if (chunks != null && state.getTotalDone() >= chunkCheckAt) {
+                    chunkCheckAt = state.getTotalDone() + chunks.getChunkSize();
+                    if (!checkChunks(dest, UNFLUSHED_MAX)) {
+                        state.setStatus(DlState.STATUS_FAILED);
+                        return state.setResult(DownloadResult.FAILED_CHECKSUM_MISMATCH);
+                    }
+                    if (state.getDigest() == null) out.setDigest(null);
+                }
+                reportProgress();
+                throttle(nRead, null);
+                if (!checkThroughput(nRead)) return null;
+                if (stall.isStalled(nRead)) {
+                    Log.w(Config.LOG_TAG + "DLTask", "transfer stalled below " + Config.DL_STALL_MIN_RATE + "B/s");
+                    if (failover() || reconnect()) return null;
+                }
             }
 
+            out.flush();
+            countFlushed(out);
+            if (state.getTotalDone() < state.getTotalSize() && reconnect()) return null;
             if (state.getTotalSize() != state.getTotalDone() && state.getTotalSize() != 0) {
-                Log.w(Config.LOG_TAG + "DLTask", "size mismatch after download");
-                //TODO size mismatch - fail?
+                Log.w(Config.LOG_TAG + "DLTask", "size mismatch after download, expected " + state.getTotalSize() +
+                        ", got " + state.getTotalDone());
+                state.setStatus(DlState.STATUS_FAILED);
+                return state.setResult(DownloadResult.FAILED_PROTOCAL_ERROR);
             }
 
-            state.setStatus(DlState.STATUS_COMPLETED);
-            return state.setResult(DownloadResult.FINISHED);
+            out.close();
+            if (dest.length() > state.getTotalDone()) setFileLength(dest, state.getTotalDone());
+            return verifyDownload(dest);
         } catch (IOException e) {
             //Log.w(Config.LOG_TAG + "DLTask", "IOException: " + e.getMessage());
             e.printStackTrace();
+            if (Utils.dataAvailable(context) && (failover() || reconnect())) return null;
             state.setStatus(DlState.STATUS_FAILED);
             return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
         } catch (Exception e) {
@@ -378,19 +907,20 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
             state.setStatus(DlState.STATUS_FAILED);
             return state.setResult(DownloadResult.FAILED_UNKNOWN);
         } finally {
+            // abort before closing, otherwise the pooled connection drains the rest of the file
+            if (req != null) req.abort();
             if (in != null) {
                 try { in.close(); }
                 catch (IOException e) { }
             }
 
             if (out != null) {
-                try { out.flush(); out.close(); }
-                catch (IOException e) { }
-            }
-
-            if (httpc != null) {
-                httpc.close();
-                httpc = null;
+                try {
+                    out.close();
+                    countFlushed(out);
+                    Log.v(Config.LOG_TAG + "DLTask", "wrote " + out.getBytesWritten() + " bytes in " +
+                            out.getNumWrites() + " writes, " + out.getWriteMillis() + "ms");
+                } catch (IOException e) { }
             }
 
             if (ftpc != null) {
@@ -406,19 +936,547 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         }
     }
 
+    private DownloadResult downloadSegments(File dest, int firstSegment, HttpGet firstReq, InputStream firstIn) {
+        SegmentWorker[] workers = new SegmentWorker[state.getNumSegments()];
+        workers[firstSegment] = new SegmentWorker(firstSegment, dest, firstReq, firstIn);
+        workers[firstSegment].start();
+
+        int stopStatus = -1;
+        boolean corrupt = false;
+        try {
+            while (true) {
+                int running = 0;
+                boolean failed = false;
+                for (int q = 0; q < workers.length; q++) {
+                    SegmentWorker worker = workers[q];
+                    if (worker == null) continue;
+                    if (worker.isAlive()) {
+                        running++;
+                    } else if (worker.result != null) {
+                        // restart just this segment, elsewhere or on a new connection; the other workers keep theirs
+                        if (worker.result != DownloadResult.FAILED_UNKNOWN && Utils.dataAvailable(context) &&
+                                (failover() || (worker.result == DownloadResult.FAILED_NETWORK_ERROR && reconnect()))) {
+                            workers[q] = null;
+                        } else {
+                            failed = true;
+                        }
+                    }
+                }
+                if (failed) break;
+                for (int q = 0; q < workers.length && running < maxConnections; q++) {
+                    if (workers[q] != null || state.isSegmentComplete(q)) continue;
+                    workers[q] = new SegmentWorker(q, dest, null, null);
+                    workers[q].start();
+                    running++;
+                }
+                if (running == 0) break;
+                setConnections(running);
+
+                if (this.isCancelled()) {
+                    stopStatus = pausing ? pauseStatus : DlState.STATUS_CANCELLED_USER;
+                    break;
+                } else if (callback != null) {
+                    int check = callback.onCheckContinue(state);
+                    if (check == DownloadService.STOP_NO_WIFI) {
+                        stopStatus = DlState.STATUS_PAUSED_FOR_WIFI;
+                        break;
+                    }
+                    if (check == DownloadService.STOP_NO_DATA) {
+                        stopStatus = DlState.STATUS_PAUSED_FOR_DATA;
+                        break;
+                    }
+                }
+
+                try {
+                    if (!checkChunks(dest, UNFLUSHED_MAX)) {
+                        corrupt = true;
+                        break;
+                    }
+                } catch (IOException e) {
+                    Log.w(Config.LOG_TAG + "DLTask", "chunk check failed: " + e.getMessage());
+                }
+
+                reportProgress();
+                try {
+                    Thread.sleep(SEGMENT_POLL_DELAY);
+                } catch (InterruptedException e) { }
+            }
+        } finally {
+            for (SegmentWorker worker : workers) {
+                if (worker != null) worker.abort();
+            }
+            for (SegmentWorker worker : workers) {
+                if (worker == null) continue;
+                while (worker.isAlive()) {
+                    try { worker.join(); }
+                    catch (InterruptedException e) { }
+                }
+            }
+        }
+
+        if (corrupt) {
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_CHECKSUM_MISMATCH);
+        }
+        if (stopStatus != -1) {
+            Log.v(Config.LOG_TAG + "DLTask", "stopping segmented download, status=" + stopStatus);
+            state.setStatus(stopStatus);
+            return state.setResult(stopStatus == DlState.STATUS_CANCELLED_USER ? DownloadResult.CANCELLED : DownloadResult.PAUSED);
+        }
+
+        for (SegmentWorker worker : workers) {
+            if (worker == null || worker.result == null) continue;
+            if (worker.result == DownloadResult.FAILED_NETWORK_ERROR && !Utils.dataAvailable(context)) {
+                state.setStatus(DlState.STATUS_PAUSED_FOR_DATA);
+                return state.setResult(DownloadResult.PAUSED);
+            }
+            if (worker.result == DownloadResult.RETRY_LATER && state.getNumFailed() < Config.DL_MAX_RETRIES) {
+                setRetryAfter(worker.retryAfter);
+                state.incNumFailed();
+                state.setStatus(DlState.STATUS_PAUSED_RETRY);
+                return state.setResult(DownloadResult.RETRY_LATER);
+            }
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(worker.result == DownloadResult.RETRY_LATER ? DownloadResult.FAILED_TOO_MANY_RETRIES : worker.result);
+        }
+
+        return verifyDownload(dest);
+    }
+
+    private class SegmentWorker extends Thread {
+        private final int segment;
+        private final File dest;
+        private volatile HttpGet req;
+        private InputStream in;
+        private volatile boolean aborted = false;
+        private boolean reusable = false;
+        private DownloadResult result = null;
+        private Header retryAfter = null;
+        private long counted = 0;
+
+        public SegmentWorker(int segment, File dest, HttpGet req, InputStream in) {
+            this.segment = segment;
+            this.dest = dest;
+            this.req = req;
+            this.in = in;
+        }
+
+        public void abort() {
+            aborted = true;
+            HttpGet curReq = req;
+            if (curReq != null) curReq.abort();
+        }
+
+        @Override
+        public void run() {
+            ChannelWriter out = null;
+            boolean ownRequest = in == null;
+            try {
+                long pos = state.getSegmentPos(segment);
+                long end = state.getSegmentEnd(segment);
+
+                if (ownRequest) {
+                    req = new HttpGet(state.getSourceURL());
+                    HttpClientParams.setRedirecting(req.getParams(), false);
+                    HttpConnectionParams.setSoTimeout(req.getParams(), Config.DL_STALL_TIMEOUT);
+                    addValidator(req);
+                    req.addHeader("Range", "bytes=" + pos + "-" + end);
+                    if (aborted) return;
+                    HttpResponse resp = SharedHttpClient.get().execute(req);
+                    int statusCode = resp.getStatusLine().getStatusCode();
+                    if (statusCode != 206) {
+                        Log.w(Config.LOG_TAG + "DLTask", "segment " + segment + " got HTTP " + statusCode);
+                        result = statusCode == 503 ? DownloadResult.RETRY_LATER : DownloadResult.FAILED_CANNOT_RESUME;
+                        retryAfter = resp.getFirstHeader("Retry-After");
+                        return;
+                    }
+                    if (!hasLength(resp, end - pos + 1)) {
+                        Log.w(Config.LOG_TAG + "DLTask", "segment " + segment + " got a body of the wrong length");
+                        result = DownloadResult.FAILED_CANNOT_RESUME;
+                        return;
+                    }
+                    in = resp.getEntity().getContent();
+                }
+
+                out = openWriter(dest, pos, -1);
+                Md5 digest = state.getDigest();
+                if (digest != null && digest.getCount() >= pos) out.setDigest(digest);
+
+                StallMonitor stall = new StallMonitor();
+                while (pos <= end && !aborted) {
+                    int nRead = out.readFrom(in, Math.min(end - pos + 1, readLimit()));
+                    if (nRead == -1) break;
+
+                    countFlushed(out);
+                    pos += nRead;
+                    throttle(nRead, this);
+                    if (stall.isStalled(nRead)) {
+                        Log.w(Config.LOG_TAG + "DLTask", "segment " + segment + " stalled below " + Config.DL_STALL_MIN_RATE + "B/s");
+                        break;
+                    }
+                }
+
+                if (pos <= end && !aborted) {
+                    Log.w(Config.LOG_TAG + "DLTask", "segment " + segment + " ended early at " + pos);
+                    result = DownloadResult.FAILED_NETWORK_ERROR;
+                }
+                // our own range was read exactly, so closing the stream releases the connection for reuse
+                reusable = ownRequest && pos > end;
+            } catch (IOException e) {
+                if (!aborted) {
+                    Log.w(Config.LOG_TAG + "DLTask", "segment " + segment + " IOException: " + e.getMessage());
+                    result = DownloadResult.FAILED_NETWORK_ERROR;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                result = DownloadResult.FAILED_UNKNOWN;
+            } finally {
+                // abort before closing, otherwise the connection tries to drain the rest of the range
+                if (req != null && !reusable) req.abort();
+                if (in != null) {
+                    try { in.close(); }
+                    catch (IOException e) { }
+                }
+                if (out != null) {
+                    try { out.close(); }
+                    catch (IOException e) { }
+                    countFlushed(out);
+                }
+            }
+        }
+
+        /* counts bytes once they leave the write buffer, so saved progress never runs ahead of the file */
+        private void countFlushed(ChannelWriter out) {
+            long written = out.getBytesWritten();
+            if (written == counted) return;
+            state.incSegmentDone(segment, (int) (written - counted));
+            counted = written;
+        }
+    }
+
+    /*
+     * Flags a transfer that keeps trickling in below DL_STALL_MIN_RATE. Reads that stop
+     * entirely are caught by the DL_STALL_TIMEOUT socket timeout instead.
+     */
+    private class StallMonitor {
+        private long windowStart = 0;
+        private long windowBytes = 0;
+
+        public boolean isStalled(int nRead) {
+            if (!limiter.isUnlimited() || !BandwidthLimiter.getGlobal().isUnlimited()) return false;
+
+            long now = System.currentTimeMillis();
+            if (windowStart == 0) windowStart = now;
+            windowBytes += nRead;
+            if (now - windowStart < Config.DL_STALL_WINDOW) return false;
+
+            long rate = windowBytes * 1000 / (now - windowStart);
+            windowStart = now;
+            windowBytes = 0;
+            return rate < Config.DL_STALL_MIN_RATE;
+        }
+    }
+
+    private DownloadResult verifyDownload(File dest) {
+        try {
+            if (!checkChunks(dest, 0)) {
+                state.setStatus(DlState.STATUS_FAILED);
+                return state.setResult(DownloadResult.FAILED_CHECKSUM_MISMATCH);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_NETWORK_ERROR);
+        }
+
+        String md5 = state.getMd5();
+        String sha256 = state.getSha256();
+        if ((md5 == null || md5.length() == 0) && (sha256 == null || sha256.length() == 0)) {
+            state.setStatus(DlState.STATUS_COMPLETED);
+            return state.setResult(DownloadResult.FINISHED);
+        }
+
+        try {
+            catchUpDigest(dest, dest.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_UNKNOWN);
+        }
+
+        String actual = state.getDigest().digestHex();
+        if (md5 != null && md5.length() != 0 && !actual.equalsIgnoreCase(md5)) {
+            Log.w(Config.LOG_TAG + "DLTask", "md5 mismatch: expected " + md5 + ", got " + actual);
+            state.setStatus(DlState.STATUS_FAILED);
+            return state.setResult(DownloadResult.FAILED_CHECKSUM_MISMATCH);
+        }
+
+        /* the md5 was kept up while downloading, sha256 needs a pass over the finished file */
+        if (sha256 != null && sha256.length() != 0) {
+            try {
+                actual = MultiHasher.hash(dest, MultiHasher.SHA256).sha256;
+            } catch (IOException e) {
+                e.printStackTrace();
+                state.setStatus(DlState.STATUS_FAILED);
+                return state.setResult(DownloadResult.FAILED_UNKNOWN);
+            }
+            if (!actual.equalsIgnoreCase(sha256)) {
+                Log.w(Config.LOG_TAG + "DLTask", "sha256 mismatch: expected " + sha256 + ", got " + actual);
+                state.setStatus(DlState.STATUS_FAILED);
+                return state.setResult(DownloadResult.FAILED_CHECKSUM_MISMATCH);
+            }
+        }
+
+        state.setStatus(DlState.STATUS_COMPLETED);
+        return state.setResult(DownloadResult.FINISHED);
+    }
+
+    private void catchUpDigest(File dest, long upTo) throws IOException {
+        Md5 digest = state.getDigest();
+        if (digest == null || digest.getCount() > upTo) {
+            digest = new Md5();
+            state.setDigest(digest);
+        }
+        if (digest.getCount() == upTo) return;
+
+        Log.v(Config.LOG_TAG + "DLTask", "hashing " + (upTo - digest.getCount()) + " bytes from disk");
+        RandomAccessFile raf = new RandomAccessFile(dest, "r");
+        try {
+            raf.seek(digest.getCount());
+            byte[] buf = new byte[BufferPool.MIN_SIZE];
+            while (digest.getCount() < upTo) {
+                int nRead = raf.read(buf, 0, (int) Math.min(buf.length, upTo - digest.getCount()));
+                if (nRead == -1) break;
+                digest.update(buf, 0, nRead);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Like a segment's, single-stream progress only counts bytes once they are written to
+     * the file, so totalDone never covers bytes that died in the buffer.
+     */
+    private void countFlushed(ChannelWriter out) {
+        long written = out.getBytesWritten();
+        if (written == streamCounted) return;
+        state.incTotalDone((int) (written - streamCounted));
+        streamCounted = written;
+    }
+
+    /* a length of -1 keeps the file as it is, otherwise it is truncated or pre-allocated to that length */
+    private static ChannelWriter openWriter(File dest, long position, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        if (length != -1) raf.setLength(length);
+        return new ChannelWriter(raf.getChannel(), position);
+    }
+
+    /* segment ranges must come from the same file, so they fail outright if it changed */
+    private void addValidator(HttpGet req) {
+        if (state.getETag() != null) {
+            req.addHeader("If-Match", state.getETag());
+        } else if (state.getLastModified() != null) {
+            req.addHeader("If-Unmodified-Since", state.getLastModified());
+        }
+    }
+
+    /*
+     * Compares the bytes just before a checkpoint with a ranged fetch from the server and
+     * returns the offset up to which the partial file can be trusted, 0 to start over. If
+     * the small tail doesn't match at all, a window the size of a lost write buffer is tried.
+     */
+    private long validateTail(File dest, long checkpoint) throws IOException {
+        int window = Config.DL_RESUME_TAIL_BYTES;
+        while (checkpoint > 0) {
+            long start = Math.max(checkpoint - window, 0);
+            byte[] remote = fetchRange(start, (int) (checkpoint - start));
+            if (remote == null) return 0;
+
+            byte[] local = new byte[remote.length];
+            RandomAccessFile raf = new RandomAccessFile(dest, "r");
+            try {
+                raf.seek(start);
+                raf.readFully(local);
+            } finally {
+                raf.close();
+            }
+
+            int match = 0;
+            while (match < local.length && local[match] == remote[match]) match++;
+            if (match == local.length) return checkpoint;
+            if (match >= Config.DL_RESUME_TAIL_MIN_MATCH || start == 0) {
+                Log.w(Config.LOG_TAG + "DLTask", "partial file only valid up to " + (start + match) + " of " + checkpoint);
+                return start + match;
+            }
+            if (window == Config.DL_RESUME_TAIL_MAX) break;
+            window = Config.DL_RESUME_TAIL_MAX;
+        }
+        return 0;
+    }
+
+    /* returns null if the server can't serve the range from the same file */
+    private byte[] fetchRange(long start, int len) throws IOException {
+        Uri uri = Uri.parse(state.getSourceURL());
+        byte[] buf = new byte[len];
+        HttpGet req = null;
+        FTPClient ftpc = null;
+        InputStream in = null;
+        boolean complete = false;
+        try {
+            if ("ftp".equals(uri.getScheme())) {
+                ftpc = new FTPClient();
+                if (uri.getPort() == -1) {
+                    ftpc.connect(uri.getHost());
+                } else {
+                    ftpc.connect(uri.getHost(), uri.getPort());
+                }
+                String[] login = uri.getUserInfo() == null ? new String[] { "anonymous", "anonymous" } : uri.getUserInfo().split(":", 2);
+                if (!FTPReply.isPositiveCompletion(ftpc.getReplyCode()) || !ftpc.login(login[0], login[1])) return null;
+                ftpc.enterLocalPassiveMode();
+                ftpc.setFileType(FTP.BINARY_FILE_TYPE);
+                ftpc.setDataTimeout(Config.DL_STALL_TIMEOUT);
+                ftpc.setRestartOffset(start);
+                in = ftpc.retrieveFileStream(uri.getPath());
+                if (in == null) return null;
+            } else {
+                req = new HttpGet(uri.toString());
+                HttpConnectionParams.setSoTimeout(req.getParams(), Config.DL_STALL_TIMEOUT);
+                if (state.getRangeValidator() != null) req.addHeader("If-Range", state.getRangeValidator());
+                req.addHeader("Range", "bytes=" + start + "-" + (start + len - 1));
+                HttpResponse resp = SharedHttpClient.get().execute(req);
+                if (resp.getStatusLine().getStatusCode() != 206) return null;
+                in = resp.getEntity().getContent();
+            }
+
+            int off = 0;
+            while (off < len) {
+                int nRead = in.read(buf, off, len - off);
+                if (nRead == -1) return null;
+                off += nRead;
+            }
+            complete = true;
+            return buf;
+        } finally {
+            if (req != null && !complete) req.abort();
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException e) { }
+            }
+            if (ftpc != null && ftpc.isConnected()) {
+                try { ftpc.disconnect(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+
+    private static void setFileLength(File dest, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        try { raf.setLength(length); }
+        finally { raf.close(); }
+    }
+
+    /* asks the service's ledger whether the volume can hold what dest still has to grow by */
+    private boolean reserveSpace(File dest) {
+        long needed = Math.max(state.getTotalSize() - dest.length(), 0);
+        if (callback != null) return callback.onReserveSpace(state, dest.getParentFile(), needed);
+        return needed < Utils.getAvailableSpace(dest.getParentFile());
+    }
+
+    /* without a Retry-After back off exponentially */
+    private void setRetryAfter(Header header) {
+        int retry = header == null ? -1 : parseRetryAfter(header.getValue(), System.currentTimeMillis());
+        if (retry < 0) {
+            retry = Config.DL_RETRY_MIN * (1 << state.getNumFailed());
+        } else if (retry < Config.DL_RETRY_MIN) {
+            retry = Config.DL_RETRY_MIN;
+        }
+        state.setRetryAfter(Math.min(retry, Config.DL_RETRY_MAX));
+    }
+
+    /* Retry-After is either delta seconds or an HTTP date, -1 if it is neither */
+    static int parseRetryAfter(String value, long now) {
+        value = value.trim();
+        try {
+            return Math.max(Integer.parseInt(value), -1);
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Math.max((DateUtils.parseDate(value).getTime() - now) / 1000, 0);
+            } catch (DateParseException ex) {
+                Log.w(Config.LOG_TAG + "DLTask", "bad Retry-After: " + value);
+                return -1;
+            }
+        }
+    }
+
+    /* a ranged body that isn't exactly the range asked for would land at the wrong offsets, -1 accepts any length */
+    private static boolean hasLength(HttpResponse resp, long expected) {
+        Header header = resp.getFirstHeader("Content-Length");
+        if (header == null || expected == -1) return true;
+        try {
+            return Long.parseLong(header.getValue().trim()) == expected;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static long parseContentRangeTotal(Header header) {
+        if (header == null) return -1;
+        String value = header.getValue();
+        int slash = value.lastIndexOf('/');
+        if (slash == -1) return -1;
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long readLimit() {
+        return Math.min(limiter.getMaxChunk(), BandwidthLimiter.getGlobal().getMaxChunk());
+    }
+
+    private void throttle(int nBytes, SegmentWorker worker) {
+        BandwidthLimiter global = BandwidthLimiter.getGlobal();
+        limiter.setRate(BandwidthLimiter.getPerDownloadRate());
+        if (limiter.isUnlimited() && global.isUnlimited()) return;
+
+        long wait = Math.max(limiter.reserve(nBytes), global.reserve(nBytes));
+        while (wait > 0 && !isCancelled() && (worker == null || !worker.aborted)) {
+            try {
+                Thread.sleep(Math.min(wait, THROTTLE_SLICE));
+            } catch (InterruptedException e) {
+                return;
+            }
+            wait -= THROTTLE_SLICE;
+        }
+    }
+
+    /* no interrupt: the read loops poll isCancelled(), and interrupting a FileChannel write closes the channel */
     public void pause() {
+        pause(DlState.STATUS_PAUSED_USER);
+    }
+
+    /* stops at the next resumable point, leaving the state in the given status */
+    public void pause(int status) {
+        pauseStatus = status;
         pausing = true;
-        cancel(true);
+        cancel(false);
+    }
+
+    public boolean isPausing() {
+        return pausing;
     }
 
     public void cancel() {
         pausing = false;
-        cancel(true);
+        cancel(false);
     }
 
     @Override
     protected void onCancelled(DownloadResult result) {
         active = false;
+        state.getRateEstimator().stop();
         if (callback != null) {
             if (pausing) callback.onPause(state);
             callback.onFinish(state, pausing ? DownloadResult.PAUSED : DownloadResult.CANCELLED);
@@ -429,14 +1487,41 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
     @Override
     protected void onPostExecute(DownloadResult result) {
         active = false;
+        state.getRateEstimator().stop();
         if (callback != null) {
             callback.onFinish(state, result);
         }
     }
 
+    /*
+     * Coalesces progress on the download thread: at most one update is in flight, it is only
+     * sent once DL_PROGRESS_BYTES have arrived or DL_PROGRESS_INTERVAL has passed, and the
+     * listener reads the latest totals from the state when it runs. Allocates nothing until
+     * an update is actually posted.
+     */
+    private void reportProgress() {
+        state.getRateEstimator().update(state.getTotalDone());
+        if (progressPending) return;
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - lastProgressTime;
+        if (elapsed < Config.DL_PROGRESS_MIN_INTERVAL) return;
+        if (elapsed < Config.DL_PROGRESS_INTERVAL &&
+                state.getTotalDone() - lastProgressBytes < Config.DL_PROGRESS_BYTES) return;
+
+        lastProgressTime = now;
+        lastProgressBytes = state.getTotalDone();
+        progressPending = true;
+        publishProgress(NO_FLAGS);
+    }
+
     @Override
     protected void onProgressUpdate(Boolean... flags) {
+        progressPending = false;
         if (callback == null) return;
+        if (connectionsReleased) {
+            connectionsReleased = false;
+            callback.onConnectionsReleased(state);
+        }
         if (flags.length != 0) {
             if (flags[0]) callback.onLengthReceived(state);
             callback.onProgress(state);
@@ -449,13 +1534,17 @@ public class DownloadTask extends AsyncTask<Void, Boolean, DownloadResult> {
         FINISHED, CANCELLED, PAUSED, RETRY_LATER, FAILED_UNKNOWN, FAILED_FILE_NOT_FOUND,
         FAILED_MOUNT_NOT_AVAILABLE, FAILED_NOT_ENOUGH_SPACE, FAILED_PROTOCAL_ERROR, FAILED_NETWORK_ERROR,
         FAILED_TOO_MANY_REDIRECTS, FAILED_TOO_MANY_RETRIES, FAILED_CANNOT_RESUME, FAILED_UNHANDLED_REDIRECT,
-        FAILED_UNHANDLED_HTTP_CODE, FAILED_HTTP_ERROR_CODE, FAILED_FTP_LOGIN_ERROR, FAILED_CONNECTION_REFUSED
+        FAILED_UNHANDLED_HTTP_CODE, FAILED_HTTP_ERROR_CODE, FAILED_FTP_LOGIN_ERROR, FAILED_CONNECTION_REFUSED,
+        FAILED_CHECKSUM_MISMATCH
     }
 
     public static interface DownloadListener {
         void onStart(DlState state);
         int onCheckContinue(DlState state);
         void onLengthReceived(DlState state);
+        void onConnectionsReleased(DlState state);
+        boolean onReserveSpace(DlState state, File dir, long needed);
+        List<File> getFilesInUse();
         void onProgress(DlState state);
         void onPause(DlState state);
         void onFinish(DlState state, DownloadResult result);
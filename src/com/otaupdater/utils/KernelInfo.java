@@ -25,7 +25,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
@@ -65,29 +64,35 @@ public class KernelInfo implements Parcelable, Serializable {
     public String version;
     public String changelog;
     public String url;
+    public String[] mirrors;
     public String md5;
     public Date date;
+    public String sha256 = null;
 
     private transient Token serviceToken = null;
     private transient Dialog downloadingDialog = null;
 
-    public KernelInfo(String kernelName, String version, String changelog, String downurl, String md5, Date date) {
+    public KernelInfo(String kernelName, String version, String changelog, String downurl, String[] mirrors, String md5, Date date) {
         this.kernelName = kernelName;
         this.version = version;
         this.changelog = changelog;
         this.url = downurl;
+        this.mirrors = mirrors;
         this.md5 = md5;
         this.date = date;
     }
 
     public static KernelInfo fromIntent(Intent i) {
-        return new KernelInfo(
+        KernelInfo info = new KernelInfo(
                 i.getStringExtra("kernel_info_name"),
                 i.getStringExtra("kernel_info_version"),
                 i.getStringExtra("kernel_info_changelog"),
                 i.getStringExtra("kernel_info_url"),
+                Utils.splitMirrors(i.getStringExtra("kernel_info_mirrors")),
                 i.getStringExtra("kernel_info_md5"),
                 Utils.parseDate(i.getStringExtra("kernel_info_date")));
+        info.sha256 = i.getStringExtra("kernel_info_sha256");
+        return info;
     }
 
     public void addToIntent(Intent i) {
@@ -95,8 +100,10 @@ public class KernelInfo implements Parcelable, Serializable {
         i.putExtra("kernel_info_version", version);
         i.putExtra("kernel_info_changelog", changelog);
         i.putExtra("kernel_info_url", url);
+        i.putExtra("kernel_info_mirrors", Utils.joinMirrors(mirrors));
         i.putExtra("kernel_info_md5", md5);
         i.putExtra("kernel_info_date", Utils.formatDate(date));
+        i.putExtra("kernel_info_sha256", sha256);
     }
 
     @Override
@@ -110,8 +117,10 @@ public class KernelInfo implements Parcelable, Serializable {
         dest.writeString(version);
         dest.writeString(changelog);
         dest.writeString(url);
+        dest.writeStringArray(mirrors);
         dest.writeString(md5);
         dest.writeLong(date.getTime());
+        dest.writeString(sha256);
     }
 
     public static final Creator<KernelInfo> CREATOR = new Creator<KernelInfo>() {
@@ -122,13 +131,16 @@ public class KernelInfo implements Parcelable, Serializable {
 
         @Override
         public KernelInfo createFromParcel(Parcel source) {
-            return new KernelInfo(
+            KernelInfo info = new KernelInfo(
                     source.readString(),
                     source.readString(),
                     source.readString(),
                     source.readString(),
+                    source.createStringArray(),
                     source.readString(),
                     new Date(source.readLong()));
+            info.sha256 = source.readString();
+            return info;
         }
     };
 
@@ -164,10 +176,15 @@ public class KernelInfo implements Parcelable, Serializable {
     }
 
     public void downloadFileSilent(Context ctx) {
+        downloadFileSilent(ctx, DlState.PRIORITY_INTERACTIVE);
+    }
+
+    public void downloadFileSilent(Context ctx, int priority) {
         Intent i = new Intent(ctx, DownloadService.class);
         i.setAction(DownloadService.SERVICE_ACTION);
         i.putExtra(DownloadService.EXTRA_CMD, DownloadService.CMD_DOWNLOAD);
         i.putExtra(DownloadService.EXTRA_INFO_TYPE, DownloadService.EXTRA_INFO_TYPE_KERNEL);
+        i.putExtra(DownloadService.EXTRA_PRIORITY, priority);
         this.addToIntent(i);
         ctx.startService(i);
     }
@@ -185,7 +202,7 @@ public class KernelInfo implements Parcelable, Serializable {
             public void onServiceConnected(ComponentName name, IBinder stub) {
                 final IDownloadService service = IDownloadService.Stub.asInterface(stub);
                 try {
-                    final int dlID = service.queueKernelDownload(KernelInfo.this);
+                    final int dlID = service.queueKernelDownload(KernelInfo.this, DlState.PRIORITY_INTERACTIVE);
                     tempDlg.dismiss();
                     if (callback != null) callback.onDialogClosed(tempDlg);
                     KernelInfo.clearUpdateNotif(ctx);
@@ -331,7 +348,7 @@ public class KernelInfo implements Parcelable, Serializable {
                 params.add(new BasicNameValuePair("device", android.os.Build.DEVICE.toLowerCase()));
                 params.add(new BasicNameValuePair("kernel", PropUtils.getKernelOtaID()));
 
-                HttpClient client = new DefaultHttpClient();
+                HttpClient client = SharedHttpClient.get();
                 HttpGet get = new HttpGet(Config.KERNEL_PULL_URL + "?" + URLEncodedUtils.format(params, "UTF-8"));
                 HttpResponse r = client.execute(get);
                 int status = r.getStatusLine().getStatusCode();
@@ -346,13 +363,16 @@ public class KernelInfo implements Parcelable, Serializable {
                         return null;
                     }
 
-                    return new KernelInfo(
+                    KernelInfo info = new KernelInfo(
                             json.getString("name"),
                             json.getString("version"),
                             json.getString("changelog"),
                             json.getString("url"),
+                            Utils.parseMirrors(json),
                             json.getString("md5"),
                             Utils.parseDate(json.getString("date")));
+                    info.sha256 = json.optString("sha256", null);
+                    return info;
                 } else {
                     if (e != null) e.consumeContent();
                     error = "Server responded with error " + status;
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/*
+ * Plain MD5 (RFC 1321) whose intermediate state is Serializable, so a download can
+ * checkpoint the digest of the bytes it has so far and continue it after a restart.
+ *
+ * It is slower than the platform MessageDigest, whose state can't be saved: about 310MB/s
+ * against 560MB/s with the JIT's native MD5, and level with the platform's own Java code
+ * (see Md5Benchmark). Even at 10MB/s that is a few percent of one core on the download
+ * thread. A digest that can't be saved costs far more: after every restart, all of the
+ * file downloaded so far has to be read back from storage and hashed again.
+ */
+public class Md5 implements Serializable {
+    private static final long serialVersionUID = 3198340327408571536L;
+
+    private final int[] h = new int[] { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476 };
+    private final byte[] block = new byte[64];
+    private long count = 0;
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void update(byte[] buf, int off, int len) {
+        int blockPos = (int) (count & 63);
+        count += len;
+
+        if (blockPos != 0) {
+            int fill = Math.min(64 - blockPos, len);
+            System.arraycopy(buf, off, block, blockPos, fill);
+            off += fill;
+            len -= fill;
+            if (blockPos + fill < 64) return;
+            transform(block, 0);
+        }
+
+        while (len >= 64) {
+            transform(buf, off);
+            off += 64;
+            len -= 64;
+        }
+
+        if (len != 0) System.arraycopy(buf, off, block, 0, len);
+    }
+
+    public synchronized byte[] digest() {
+        Md5 fin = copy();
+
+        long bitCount = count << 3;
+        int blockPos = (int) (count & 63);
+        int padLen = blockPos < 56 ? 56 - blockPos : 120 - blockPos;
+        byte[] pad = new byte[padLen + 8];
+        pad[0] = (byte) 0x80;
+        for (int q = 0; q < 8; q++) {
+            pad[padLen + q] = (byte) (bitCount >>> (8 * q));
+        }
+        fin.update(pad, 0, pad.length);
+
+        byte[] out = new byte[16];
+        for (int q = 0; q < 4; q++) {
+            out[q * 4] = (byte) fin.h[q];
+            out[q * 4 + 1] = (byte) (fin.h[q] >>> 8);
+            out[q * 4 + 2] = (byte) (fin.h[q] >>> 16);
+            out[q * 4 + 3] = (byte) (fin.h[q] >>> 24);
+        }
+        return out;
+    }
+
+    public String digestHex() {
+        return Utils.byteArrToStr(digest());
+    }
+
+    public synchronized Md5 copy() {
+        Md5 copy = new Md5();
+        System.arraycopy(h, 0, copy.h, 0, 4);
+        System.arraycopy(block, 0, copy.block, 0, 64);
+        copy.count = count;
+        return copy;
+    }
+
+    /* compact form of the intermediate state for the state journal, 24 to 87 bytes */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(count);
+        for (int q = 0; q < 4; q++) {
+            out.writeInt(h[q]);
+        }
+        out.write(block, 0, (int) (count & 63));
+    }
+
+    public static Md5 readFrom(DataInputStream in) throws IOException {
+        Md5 md5 = new Md5();
+        md5.count = in.readLong();
+        if (md5.count < 0) throw new IOException("bad digest count " + md5.count);
+        for (int q = 0; q < 4; q++) {
+            md5.h[q] = in.readInt();
+        }
+        in.readFully(md5.block, 0, (int) (md5.count & 63));
+        return md5;
+    }
+
+    public synchronized void reset() {
+        h[0] = 0x67452301;
+        h[1] = 0xefcdab89;
+        h[2] = 0x98badcfe;
+        h[3] = 0x10325476;
+        count = 0;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /* unrolled with the message words in locals, which roughly halves the time of a table-driven loop */
+    private void transform(byte[] buf, int off) {
+        int x0 = word(buf, off), x1 = word(buf, off + 4), x2 = word(buf, off + 8), x3 = word(buf, off + 12);
+        int x4 = word(buf, off + 16), x5 = word(buf, off + 20), x6 = word(buf, off + 24), x7 = word(buf, off + 28);
+        int x8 = word(buf, off + 32), x9 = word(buf, off + 36), x10 = word(buf, off + 40), x11 = word(buf, off + 44);
+        int x12 = word(buf, off + 48), x13 = word(buf, off + 52), x14 = word(buf, off + 56), x15 = word(buf, off + 60);
+
+        int a = h[0], b = h[1], c = h[2], d = h[3];
+
+        a = ff(a, b, c, d, x0, 7, 0xd76aa478);
+        d = ff(d, a, b, c, x1, 12, 0xe8c7b756);
+        c = ff(c, d, a, b, x2, 17, 0x242070db);
+        b = ff(b, c, d, a, x3, 22, 0xc1bdceee);
+        a = ff(a, b, c, d, x4, 7, 0xf57c0faf);
+        d = ff(d, a, b, c, x5, 12, 0x4787c62a);
+        c = ff(c, d, a, b, x6, 17, 0xa8304613);
+        b = ff(b, c, d, a, x7, 22, 0xfd469501);
+        a = ff(a, b, c, d, x8, 7, 0x698098d8);
+        d = ff(d, a, b, c, x9, 12, 0x8b44f7af);
+        c = ff(c, d, a, b, x10, 17, 0xffff5bb1);
+        b = ff(b, c, d, a, x11, 22, 0x895cd7be);
+        a = ff(a, b, c, d, x12, 7, 0x6b901122);
+        d = ff(d, a, b, c, x13, 12, 0xfd987193);
+        c = ff(c, d, a, b, x14, 17, 0xa679438e);
+        b = ff(b, c, d, a, x15, 22, 0x49b40821);
+
+        a = gg(a, b, c, d, x1, 5, 0xf61e2562);
+        d = gg(d, a, b, c, x6, 9, 0xc040b340);
+        c = gg(c, d, a, b, x11, 14, 0x265e5a51);
+        b = gg(b, c, d, a, x0, 20, 0xe9b6c7aa);
+        a = gg(a, b, c, d, x5, 5, 0xd62f105d);
+        d = gg(d, a, b, c, x10, 9, 0x02441453);
+        c = gg(c, d, a, b, x15, 14, 0xd8a1e681);
+        b = gg(b, c, d, a, x4, 20, 0xe7d3fbc8);
+        a = gg(a, b, c, d, x9, 5, 0x21e1cde6);
+        d = gg(d, a, b, c, x14, 9, 0xc33707d6);
+        c = gg(c, d, a, b, x3, 14, 0xf4d50d87);
+        b = gg(b, c, d, a, x8, 20, 0x455a14ed);
+        a = gg(a, b, c, d, x13, 5, 0xa9e3e905);
+        d = gg(d, a, b, c, x2, 9, 0xfcefa3f8);
+        c = gg(c, d, a, b, x7, 14, 0x676f02d9);
+        b = gg(b, c, d, a, x12, 20, 0x8d2a4c8a);
+
+        a = hh(a, b, c, d, x5, 4, 0xfffa3942);
+        d = hh(d, a, b, c, x8, 11, 0x8771f681);
+        c = hh(c, d, a, b, x11, 16, 0x6d9d6122);
+        b = hh(b, c, d, a, x14, 23, 0xfde5380c);
+        a = hh(a, b, c, d, x1, 4, 0xa4beea44);
+        d = hh(d, a, b, c, x4, 11, 0x4bdecfa9);
+        c = hh(c, d, a, b, x7, 16, 0xf6bb4b60);
+        b = hh(b, c, d, a, x10, 23, 0xbebfbc70);
+        a = hh(a, b, c, d, x13, 4, 0x289b7ec6);
+        d = hh(d, a, b, c, x0, 11, 0xeaa127fa);
+        c = hh(c, d, a, b, x3, 16, 0xd4ef3085);
+        b = hh(b, c, d, a, x6, 23, 0x04881d05);
+        a = hh(a, b, c, d, x9, 4, 0xd9d4d039);
+        d = hh(d, a, b, c, x12, 11, 0xe6db99e5);
+        c = hh(c, d, a, b, x15, 16, 0x1fa27cf8);
+        b = hh(b, c, d, a, x2, 23, 0xc4ac5665);
+
+        a = ii(a, b, c, d, x0, 6, 0xf4292244);
+        d = ii(d, a, b, c, x7, 10, 0x432aff97);
+        c = ii(c, d, a, b, x14, 15, 0xab9423a7);
+        b = ii(b, c, d, a, x5, 21, 0xfc93a039);
+        a = ii(a, b, c, d, x12, 6, 0x655b59c3);
+        d = ii(d, a, b, c, x3, 10, 0x8f0ccc92);
+        c = ii(c, d, a, b, x10, 15, 0xffeff47d);
+        b = ii(b, c, d, a, x1, 21, 0x85845dd1);
+        a = ii(a, b, c, d, x8, 6, 0x6fa87e4f);
+        d = ii(d, a, b, c, x15, 10, 0xfe2ce6e0);
+        c = ii(c, d, a, b, x6, 15, 0xa3014314);
+        b = ii(b, c, d, a, x13, 21, 0x4e0811a1);
+        a = ii(a, b, c, d, x4, 6, 0xf7537e82);
+        d = ii(d, a, b, c, x11, 10, 0xbd3af235);
+        c = ii(c, d, a, b, x2, 15, 0x2ad7d2bb);
+        b = ii(b, c, d, a, x9, 21, 0xeb86d391);
+
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+    }
+
+    private static int word(byte[] buf, int p) {
+        return (buf[p] & 0xff) | ((buf[p + 1] & 0xff) << 8) | ((buf[p + 2] & 0xff) << 16) | ((buf[p + 3] & 0xff) << 24);
+    }
+
+    private static int ff(int a, int b, int c, int d, int x, int s, int k) {
+        return b + Integer.rotateLeft(a + ((b & c) | (~b & d)) + x + k, s);
+    }
+
+    private static int gg(int a, int b, int c, int d, int x, int s, int k) {
+        return b + Integer.rotateLeft(a + ((b & d) | (c & ~d)) + x + k, s);
+    }
+
+    private static int hh(int a, int b, int c, int d, int x, int s, int k) {
+        return b + Integer.rotateLeft(a + (b ^ c ^ d) + x + k, s);
+    }
+
+    private static int ii(int a, int b, int c, int d, int x, int s, int k) {
+        return b + Integer.rotateLeft(a + (c ^ (b | ~d)) + x + k, s);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.HttpClientParams;
+
+import android.net.Uri;
+import android.util.Log;
+
+/*
+ * Probes download mirrors with a one byte range request and orders them by time to first byte.
+ * Non-http mirrors can't be probed cheaply and are kept after the probed ones.
+ */
+public class MirrorProber {
+    private final String[] urls;
+
+    public MirrorProber(String[] urls) {
+        this.urls = urls;
+    }
+
+    public List<Mirror> probe(long timeout) {
+        ArrayList<Mirror> mirrors = new ArrayList<Mirror>(urls.length);
+        for (int q = 0; q < urls.length; q++) {
+            Mirror mirror = new Mirror(q, urls[q]);
+            mirrors.add(mirror);
+            if ("http".equals(Uri.parse(urls[q]).getScheme())) {
+                mirror.start();
+            } else {
+                mirror.ok = true;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Mirror mirror : mirrors) {
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                if (wait > 0) mirror.join(wait);
+            } catch (InterruptedException e) { }
+            if (mirror.isAlive()) mirror.abort();
+        }
+
+        Collections.sort(mirrors, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror lhs, Mirror rhs) {
+                if (lhs.ok != rhs.ok) return lhs.ok ? -1 : 1;
+                if (lhs.ttfb == rhs.ttfb) return lhs.index - rhs.index;
+                if (lhs.ttfb == -1) return 1;
+                if (rhs.ttfb == -1) return -1;
+                return lhs.ttfb < rhs.ttfb ? -1 : 1;
+            }
+        });
+
+        for (Mirror mirror : mirrors) {
+            Log.v(Config.LOG_TAG + "Mirrors", mirror.url + " ok=" + mirror.ok + " ttfb=" + mirror.ttfb + "ms size=" + mirror.size);
+        }
+        return mirrors;
+    }
+
+    public class Mirror extends Thread {
+        private final int index;
+        private final String url;
+        private volatile HttpGet req = null;
+        private volatile boolean ok = false;
+        private volatile boolean ranges = false;
+        private volatile long ttfb = -1;
+        private volatile long size = -1;
+        private volatile String eTag = null;
+
+        private Mirror(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public boolean supportsRanges() {
+            return ranges;
+        }
+
+        public long getTtfb() {
+            return ttfb;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        private void abort() {
+            HttpGet curReq = req;
+            if (curReq != null) curReq.abort();
+        }
+
+        @Override
+        public void run() {
+            HttpClient httpc = SharedHttpClient.get();
+            try {
+                String curUrl = url;
+                long start = System.currentTimeMillis();
+                for (int redirects = 0; redirects <= Config.DL_MAX_REDIRECTS; redirects++) {
+                    req = new HttpGet(curUrl);
+                    HttpClientParams.setRedirecting(req.getParams(), false);
+                    req.addHeader("Range", "bytes=0-0");
+                    HttpResponse resp = httpc.execute(req);
+                    int statusCode = resp.getStatusLine().getStatusCode();
+
+                    if (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) {
+                        Header location = resp.getFirstHeader("Location");
+                        if (resp.getEntity() != null) resp.getEntity().consumeContent();
+                        if (location == null) return;
+                        curUrl = new URI(curUrl).resolve(new URI(location.getValue())).toString();
+                        continue;
+                    }
+
+                    ttfb = System.currentTimeMillis() - start;
+                    if (statusCode == 206) {
+                        size = DownloadTask.parseContentRangeTotal(resp.getFirstHeader("Content-Range"));
+                    } else if (statusCode == 200) {
+                        Header length = resp.getFirstHeader("Content-Length");
+                        if (length != null) size = Long.parseLong(length.getValue());
+                    }
+                    Header etag = resp.getFirstHeader("ETag");
+                    if (etag != null) eTag = etag.getValue();
+                    ok = statusCode == 200 || statusCode == 206;
+                    ranges = statusCode == 206;
+
+                    // the single byte of a range reply is cheap to drain and keeps the connection pooled
+                    if (ranges && resp.getEntity() != null) {
+                        resp.getEntity().consumeContent();
+                        req = null;
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(Config.LOG_TAG + "Mirrors", "probe failed for " + url + ": " + e.getMessage());
+            } catch (URISyntaxException e) {
+                Log.w(Config.LOG_TAG + "Mirrors", "bad redirect from " + url);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                abort();
+            }
+        }
+    }
+}
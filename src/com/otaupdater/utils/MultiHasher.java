@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/*
+ * Computes several digests of a file in a single pass. One buffer is read from disk while
+ * the previous one is fed to the digests on a worker thread, so reads overlap hashing even
+ * for a single digest. With more than one core every digest gets its own thread, so the
+ * slowest digest sets the pace instead of the sum of them.
+ */
+public class MultiHasher {
+    public static final int MD5 = 1;
+    public static final int SHA256 = 2;
+    public static final int CRC = 4;
+    public static final int ALL = MD5 | SHA256 | CRC;
+
+    private static final int NUM_BUFFERS = 2;
+
+    public static class Result {
+        public String md5 = null;
+        public String sha256 = null;
+        public String crc32 = null;
+        public long length = 0;
+    }
+
+    private static abstract class Digester implements Runnable {
+        protected byte[] buf;
+        protected int len;
+
+        public Digester feed(ByteBuffer chunk) {
+            buf = chunk.array();
+            len = chunk.limit();
+            return this;
+        }
+
+        public abstract String finish();
+    }
+
+    private static class MessageDigester extends Digester {
+        private final MessageDigest digest;
+
+        public MessageDigester(String algorithm) throws NoSuchAlgorithmException {
+            digest = MessageDigest.getInstance(algorithm);
+        }
+
+        @Override
+        public void run() {
+            digest.update(buf, 0, len);
+        }
+
+        @Override
+        public String finish() {
+            return Utils.byteArrToStr(digest.digest());
+        }
+    }
+
+    private static class CrcDigester extends Digester {
+        private final CRC32 crc = new CRC32();
+
+        @Override
+        public void run() {
+            crc.update(buf, 0, len);
+        }
+
+        @Override
+        public String finish() {
+            return String.format("%08x", crc.getValue());
+        }
+    }
+
+    public static Result hash(File f, int algorithms) throws IOException {
+        Digester md5 = null, sha256 = null, crc = null;
+        try {
+            if ((algorithms & MD5) != 0) md5 = new MessageDigester("MD5");
+            if ((algorithms & SHA256) != 0) sha256 = new MessageDigester("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        if ((algorithms & CRC) != 0) crc = new CrcDigester();
+
+        Digester[] digesters = compact(md5, sha256, crc);
+        int nThreads = Math.max(1, Math.min(digesters.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+
+        ByteBuffer[] bufs = new ByteBuffer[NUM_BUFFERS];
+        for (int q = 0; q < NUM_BUFFERS; q++) {
+            bufs[q] = BufferPool.acquire(BufferPool.MAX_SIZE);
+        }
+
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            Future<?>[] pending = new Future<?>[digesters.length];
+            int cur = 0;
+            while (true) {
+                ByteBuffer buf = bufs[cur];
+                buf.clear();
+                while (buf.hasRemaining() && channel.read(buf) != -1) { }
+                buf.flip();
+
+                /* the digests must see chunks in order, so the last one has to be done first */
+                await(pending);
+                if (buf.limit() == 0) break;
+                result.length += buf.limit();
+
+                for (int q = 0; q < digesters.length; q++) {
+                    pending[q] = executor.submit(digesters[q].feed(buf));
+                }
+                cur = (cur + 1) % NUM_BUFFERS;
+            }
+        } finally {
+            in.close();
+            executor.shutdownNow();
+            for (ByteBuffer buf : bufs) {
+                BufferPool.release(buf);
+            }
+        }
+
+        if (md5 != null) result.md5 = md5.finish();
+        if (sha256 != null) result.sha256 = sha256.finish();
+        if (crc != null) result.crc32 = crc.finish();
+
+        Log.v(Config.LOG_TAG + "Hash", "hashed " + result.length + " bytes in " +
+                (System.currentTimeMillis() - start) + "ms on " + nThreads + " threads");
+        return result;
+    }
+
+    private static void await(Future<?>[] pending) throws IOException {
+        for (int q = 0; q < pending.length; q++) {
+            if (pending[q] == null) continue;
+            try {
+                pending[q].get();
+            } catch (Exception e) {
+                throw new IOException("hashing failed: " + e.getMessage());
+            }
+            pending[q] = null;
+        }
+    }
+
+    private static Digester[] compact(Digester... all) {
+        int n = 0;
+        for (Digester d : all) {
+            if (d != null) n++;
+        }
+        Digester[] digesters = new Digester[n];
+        n = 0;
+        for (Digester d : all) {
+            if (d != null) digesters[n++] = d;
+        }
+        return digesters;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * The part of a DlState that changes while it downloads, in a fixed 52 byte parcel. Clients
+ * keep the full DlState they got once and apply snapshots on top of it.
+ */
+public class ProgressSnapshot implements Parcelable {
+    public int id;
+    public int status;
+    public int result;
+    public long totalDone;
+    public long totalSize;
+    public long rate;
+    public long smoothedRate;
+    public long averageRate;
+
+    public ProgressSnapshot() {
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(id);
+        dest.writeInt(status);
+        dest.writeInt(result);
+        dest.writeLong(totalDone);
+        dest.writeLong(totalSize);
+        dest.writeLong(rate);
+        dest.writeLong(smoothedRate);
+        dest.writeLong(averageRate);
+    }
+
+    public static final Creator<ProgressSnapshot> CREATOR = new Creator<ProgressSnapshot>() {
+        @Override
+        public ProgressSnapshot[] newArray(int size) {
+            return new ProgressSnapshot[size];
+        }
+
+        @Override
+        public ProgressSnapshot createFromParcel(Parcel source) {
+            ProgressSnapshot snapshot = new ProgressSnapshot();
+            snapshot.id = source.readInt();
+            snapshot.status = source.readInt();
+            snapshot.result = source.readInt();
+            snapshot.totalDone = source.readLong();
+            snapshot.totalSize = source.readLong();
+            snapshot.rate = source.readLong();
+            snapshot.smoothedRate = source.readLong();
+            snapshot.averageRate = source.readLong();
+            return snapshot;
+        }
+    };
+}
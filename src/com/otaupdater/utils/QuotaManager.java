@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Keeps ROM_DL_PATH and KERNEL_DL_PATH within the storage budget and the keep-last-N
+ * setting, evicting least recently used zips first. The zips for the installed ROM and
+ * kernel versions (needed for deltas and reflashing) and any file passed in as in use are
+ * never touched.
+ */
+public class QuotaManager {
+    private static QuotaManager instance = null;
+
+    private final Context ctx;
+
+    private QuotaManager(Context ctx) {
+        this.ctx = ctx.getApplicationContext();
+    }
+
+    public static synchronized QuotaManager getInstance(Context ctx) {
+        if (instance == null) instance = new QuotaManager(ctx);
+        return instance;
+    }
+
+    public void enforceAsync(final Collection<File> inUse) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                enforce(inUse);
+            }
+        }, "QuotaManager").start();
+    }
+
+    /* applies the budget and keep-last-N policy, returns the number of bytes freed */
+    public synchronized long enforce(Collection<File> inUse) {
+        Config cfg = Config.getInstance(ctx);
+        long budget = cfg.getDlCacheQuota() * 1048576L;
+        int keepLast = cfg.getDlKeepLast();
+        if (budget == 0 && keepLast == 0) return 0;
+
+        long freed = 0;
+        if (keepLast != 0) {
+            freed += evictOld(index(Config.ROM_DL_PATH_FILE), keepLast, inUse);
+            freed += evictOld(index(Config.KERNEL_DL_PATH_FILE), keepLast, inUse);
+        }
+        if (budget != 0) {
+            ArrayList<IndexEntry> all = index(Config.ROM_DL_PATH_FILE);
+            all.addAll(index(Config.KERNEL_DL_PATH_FILE));
+            long total = 0;
+            for (IndexEntry entry : all) total += entry.size;
+            if (total > budget) freed += free(all, total - budget, inUse);
+        }
+        return freed;
+    }
+
+    /* evicts until at least bytes are freed or nothing evictable is left, returns bytes freed */
+    public synchronized long free(long bytes, Collection<File> inUse) {
+        ArrayList<IndexEntry> all = index(Config.ROM_DL_PATH_FILE);
+        all.addAll(index(Config.KERNEL_DL_PATH_FILE));
+        return free(all, bytes, inUse);
+    }
+
+    private long free(ArrayList<IndexEntry> entries, long bytes, Collection<File> inUse) {
+        sortByUse(entries);
+        HashSet<File> keep = getProtected(inUse);
+        long freed = 0;
+        for (IndexEntry entry : entries) {
+            if (freed >= bytes) break;
+            if (keep.contains(entry.file)) continue;
+            freed += evict(entry);
+        }
+        return freed;
+    }
+
+    private long evictOld(ArrayList<IndexEntry> entries, int keepLast, Collection<File> inUse) {
+        sortByUse(entries);
+        HashSet<File> keep = getProtected(inUse);
+        long freed = 0;
+        for (int q = 0; q < entries.size() - keepLast; q++) {
+            if (keep.contains(entries.get(q).file)) continue;
+            freed += evict(entries.get(q));
+        }
+        return freed;
+    }
+
+    private long evict(IndexEntry entry) {
+        Log.v(Config.LOG_TAG + "Quota", "evicting " + entry.file + " (" + entry.size + " bytes)");
+        if (!entry.file.delete()) return 0;
+        DownloadCache.getInstance(ctx).remove(entry.file);
+        return entry.size;
+    }
+
+    private ArrayList<IndexEntry> index(File dir) {
+        ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+        File[] files = dir.listFiles();
+        if (files == null) return entries;
+
+        Map<File, Long> lastUsed = DownloadCache.getInstance(ctx).getLastUsed();
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().endsWith(".zip")) continue;
+            Long used = lastUsed.get(file);
+            entries.add(new IndexEntry(file, file.length(), used == null ? file.lastModified() : used));
+        }
+        return entries;
+    }
+
+    private static void sortByUse(ArrayList<IndexEntry> entries) {
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+            @Override
+            public int compare(IndexEntry lhs, IndexEntry rhs) {
+                return Long.valueOf(lhs.used).compareTo(rhs.used);
+            }
+        });
+    }
+
+    private static HashSet<File> getProtected(Collection<File> inUse) {
+        HashSet<File> keep = new HashSet<File>(inUse);
+        String romVersion = PropUtils.getRomOtaVersion();
+        String kernelVersion = PropUtils.getKernelOtaVersion();
+        for (File dir : new File[] { Config.ROM_DL_PATH_FILE, Config.KERNEL_DL_PATH_FILE }) {
+            String version = dir == Config.ROM_DL_PATH_FILE ? romVersion : kernelVersion;
+            if (version == null) continue;
+            String suffix = Utils.sanitizeName("__" + version + ".zip");
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (file.getName().endsWith(suffix)) keep.add(file);
+            }
+        }
+        return keep;
+    }
+
+    private static class IndexEntry {
+        private final File file;
+        private final long size;
+        private final long used;
+
+        public IndexEntry(File file, long size, long used) {
+            this.file = file;
+            this.size = size;
+            this.used = used;
+        }
+    }
+}
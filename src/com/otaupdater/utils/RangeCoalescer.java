@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Collects byte ranges (added in ascending order) and merges them into fewer requests:
+ * gaps up to maxGap are fetched rather than split, and if there are still more than
+ * maxRanges ranges the smallest gaps are merged until there aren't.
+ */
+public class RangeCoalescer {
+    private final ArrayList<long[]> ranges = new ArrayList<long[]>();
+
+    public void add(long start, long end) {
+        if (!ranges.isEmpty()) {
+            long[] last = ranges.get(ranges.size() - 1);
+            if (start < last[0]) throw new IllegalArgumentException("ranges must be added in order");
+            if (start <= last[1] + 1) {
+                last[1] = Math.max(last[1], end);
+                return;
+            }
+        }
+        ranges.add(new long[] { start, end });
+    }
+
+    public void coalesce(long maxGap, int maxRanges) {
+        mergeGaps(maxGap);
+        if (ranges.size() <= maxRanges || maxRanges < 1) return;
+
+        // pack (gap, index) so sorting keeps ties apart and exactly the smallest gaps get merged
+        long[] gaps = new long[ranges.size() - 1];
+        for (int q = 0; q < gaps.length; q++) {
+            gaps[q] = ((ranges.get(q + 1)[0] - ranges.get(q)[1] - 1) << 20) | q;
+        }
+        Arrays.sort(gaps);
+        boolean[] merge = new boolean[gaps.length];
+        for (int q = 0; q < ranges.size() - maxRanges; q++) {
+            merge[(int) (gaps[q] & 0xfffff)] = true;
+        }
+
+        ArrayList<long[]> merged = new ArrayList<long[]>(maxRanges);
+        for (int q = 0; q < ranges.size(); q++) {
+            if (q > 0 && merge[q - 1]) {
+                merged.get(merged.size() - 1)[1] = ranges.get(q)[1];
+            } else {
+                merged.add(ranges.get(q));
+            }
+        }
+        ranges.clear();
+        ranges.addAll(merged);
+    }
+
+    private void mergeGaps(long maxGap) {
+        ArrayList<long[]> merged = new ArrayList<long[]>(ranges.size());
+        for (long[] range : ranges) {
+            if (!merged.isEmpty()) {
+                long[] last = merged.get(merged.size() - 1);
+                if (range[0] - last[1] - 1 <= maxGap) {
+                    last[1] = range[1];
+                    continue;
+                }
+            }
+            merged.add(range);
+        }
+        ranges.clear();
+        ranges.addAll(merged);
+    }
+
+    public int size() {
+        return ranges.size();
+    }
+
+    public long getStart(int q) {
+        return ranges.get(q)[0];
+    }
+
+    public long getEnd(int q) {
+        return ranges.get(q)[1];
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long[] range : ranges) total += range[1] - range[0] + 1;
+        return total;
+    }
+
+    public boolean contains(long start, long end) {
+        for (long[] range : ranges) {
+            if (start >= range[0] && end <= range[1]) return true;
+            if (range[0] > end) break;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.os.SystemClock;
+
+/*
+ * Transfer rate of a running download. update() is only called from the download thread and
+ * works on preallocated sample rings; the published rates are volatile so the service and
+ * binder threads can read them without locking. Rates are in bytes/sec, -1 while unknown.
+ */
+public class RateEstimator {
+    private static final int SLOTS = 20;
+    private static final long SAMPLE_INTERVAL = 250; //window of SLOTS * SAMPLE_INTERVAL = 5s
+    private static final double EWMA_TAU = 5000;
+
+    private final long[] sampleTime = new long[SLOTS];
+    private final long[] sampleBytes = new long[SLOTS];
+    private int next = 0;
+    private int count = 0;
+
+    private long startTime = 0;
+    private long startBytes = 0;
+    private double smoothed = -1;
+
+    private volatile long rate = -1;
+    private volatile long smoothedRate = -1;
+    private volatile long averageRate = -1;
+
+    public void start(long bytes) {
+        start(bytes, SystemClock.elapsedRealtime());
+    }
+
+    void start(long bytes, long now) {
+        startTime = now;
+        startBytes = bytes;
+        next = 0;
+        count = 0;
+        smoothed = -1;
+        addSample(now, bytes);
+        rate = -1;
+        smoothedRate = -1;
+        averageRate = -1;
+    }
+
+    public void stop() {
+        count = 0;
+        rate = -1;
+        smoothedRate = -1;
+        averageRate = -1;
+    }
+
+    public void update(long bytes) {
+        update(bytes, SystemClock.elapsedRealtime());
+    }
+
+    void update(long bytes, long now) {
+        int last = (next + SLOTS - 1) % SLOTS;
+        if (count == 0 || bytes < sampleBytes[last]) {
+            start(bytes, now);
+            return;
+        }
+        long dt = now - sampleTime[last];
+        if (dt < SAMPLE_INTERVAL) return;
+
+        double instant = (bytes - sampleBytes[last]) * 1000.0 / dt;
+        smoothed = smoothed < 0 ? instant : smoothed + (1 - Math.exp(-dt / EWMA_TAU)) * (instant - smoothed);
+
+        int oldest = count < SLOTS ? 0 : next;
+        rate = (bytes - sampleBytes[oldest]) * 1000 / (now - sampleTime[oldest]);
+        smoothedRate = (long) smoothed;
+        averageRate = (bytes - startBytes) * 1000 / (now - startTime);
+        addSample(now, bytes);
+    }
+
+    private void addSample(long time, long bytes) {
+        sampleTime[next] = time;
+        sampleBytes[next] = bytes;
+        next = (next + 1) % SLOTS;
+        if (count < SLOTS) count++;
+    }
+
+    /* rate over the last few seconds */
+    public long getRate() {
+        return rate;
+    }
+
+    public long getSmoothedRate() {
+        return smoothedRate;
+    }
+
+    public long getAverageRate() {
+        return averageRate;
+    }
+
+    /* seconds left at the smoothed rate, -1 if unknown */
+    public long getEta(long remaining) {
+        long r = smoothedRate;
+        if (r <= 0 || remaining <= 0) return -1;
+        return remaining / r;
+    }
+
+    void set(long rate, long smoothedRate, long averageRate) {
+        this.rate = rate;
+        this.smoothedRate = smoothedRate;
+        this.averageRate = averageRate;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+/*
+ * Turns a download's retryAfter into a due time and keeps one wakeup alarm armed for the
+ * pending retries. Due times never come before the server's Retry-After; a random jitter
+ * is added on top so a fleet of devices told the same thing doesn't come back at once.
+ * Retries due within DL_RETRY_BATCH_WINDOW of the earliest one share its wakeup, which
+ * is moved to the latest of them. Due times live in DlState so they survive restarts.
+ */
+public class RetryScheduler {
+    private static final int MAX_LOG = 50;
+
+    private final AlarmManager am;
+    private final PendingIntent alarmIntent;
+    private final Random random = new Random();
+
+    private long alarmAt = 0;
+    private final LinkedList<String> decisions = new LinkedList<String>();
+
+    public RetryScheduler(Context ctx, PendingIntent alarmIntent) {
+        this.am = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        this.alarmIntent = alarmIntent;
+    }
+
+    public long schedule(DlState state) {
+        long now = System.currentTimeMillis();
+        long delay = Math.max(state.getRetryAfter(), 0) * 1000L;
+        long jitterMax = Math.max(delay * Config.DL_RETRY_JITTER_PCT / 100, Config.DL_RETRY_JITTER_MIN);
+        long jitter = (long) (random.nextDouble() * jitterMax);
+
+        state.setRetryAt(now + delay + jitter);
+        record("id=" + state.getId() + " failures=" + state.getNumFailed() + " retryAfter=" + state.getRetryAfter() +
+                "s jitter=" + jitter + "ms due=" + Utils.formatTime(state.getRetryAt()));
+        return state.getRetryAt();
+    }
+
+    public boolean isDue(DlState state) {
+        return state.getRetryAt() <= System.currentTimeMillis();
+    }
+
+    /*
+     * Retries that are already due don't need a wakeup, they start as soon as a slot frees
+     * up in the queue.
+     */
+    public void rearm(SparseArray<DlState> downloads) {
+        long now = System.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
+            if (state.getStatus() != DlState.STATUS_PAUSED_RETRY || state.getRetryAt() <= now) continue;
+            earliest = Math.min(earliest, state.getRetryAt());
+        }
+
+        if (earliest == Long.MAX_VALUE) {
+            if (alarmAt != 0) {
+                am.cancel(alarmIntent);
+                record("no retries pending, alarm cancelled");
+                alarmAt = 0;
+            }
+            return;
+        }
+
+        long wakeAt = earliest;
+        int batched = 0;
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
+            if (state.getStatus() != DlState.STATUS_PAUSED_RETRY || state.getRetryAt() <= now) continue;
+            if (state.getRetryAt() <= earliest + Config.DL_RETRY_BATCH_WINDOW) {
+                wakeAt = Math.max(wakeAt, state.getRetryAt());
+                batched++;
+            }
+        }
+        if (wakeAt == alarmAt) return;
+        alarmAt = wakeAt;
+        am.set(AlarmManager.RTC_WAKEUP, wakeAt, alarmIntent);
+        record("alarm at " + Utils.formatTime(wakeAt) + " for " + batched + " retries");
+    }
+
+    private void record(String decision) {
+        Log.v(Config.LOG_TAG + "Retry", decision);
+        synchronized (decisions) {
+            decisions.addLast(Utils.formatTime(System.currentTimeMillis()) + " " + decision);
+            if (decisions.size() > MAX_LOG) decisions.removeFirst();
+        }
+    }
+
+    public void dump(PrintWriter pw, SparseArray<DlState> downloads) {
+        pw.println("Retry scheduler: alarm " + (alarmAt == 0 ? "not armed" : "at " + Utils.formatTime(alarmAt)));
+        for (int q = 0; q < downloads.size(); q++) {
+            DlState state = downloads.valueAt(q);
+            if (state.getStatus() != DlState.STATUS_PAUSED_RETRY) continue;
+            pw.println("  id=" + state.getId() + " failures=" + state.getNumFailed() + " due=" + Utils.formatTime(state.getRetryAt()));
+        }
+        pw.println("Recent decisions:");
+        synchronized (decisions) {
+            for (String decision : decisions) pw.println("  " + decision);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.otaupdater.utils;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
@@ -25,7 +26,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
@@ -65,29 +65,42 @@ public class RomInfo implements Parcelable, Serializable {
     public String version;
     public String changelog;
     public String url;
+    public String[] mirrors;
     public String md5;
     public Date date;
+    public String sha256 = null;
+
+    public String deltaFrom = null;
+    public String deltaUrl = null;
+    public String deltaMd5 = null;
 
     private transient Token serviceToken = null;
     private transient Dialog downloadingDialog = null;
 
-    public RomInfo(String romName, String version, String changelog, String downurl, String md5, Date date) {
+    public RomInfo(String romName, String version, String changelog, String downurl, String[] mirrors, String md5, Date date) {
         this.romName = romName;
         this.version = version;
         this.changelog = changelog;
         this.url = downurl;
+        this.mirrors = mirrors;
         this.md5 = md5;
         this.date = date;
     }
 
     public static RomInfo fromIntent(Intent i) {
-        return new RomInfo(
+        RomInfo info = new RomInfo(
                 i.getStringExtra("rom_info_name"),
                 i.getStringExtra("rom_info_version"),
                 i.getStringExtra("rom_info_changelog"),
                 i.getStringExtra("rom_info_url"),
+                Utils.splitMirrors(i.getStringExtra("rom_info_mirrors")),
                 i.getStringExtra("rom_info_md5"),
                 Utils.parseDate(i.getStringExtra("rom_info_date")));
+        info.sha256 = i.getStringExtra("rom_info_sha256");
+        info.deltaFrom = i.getStringExtra("rom_info_delta_from");
+        info.deltaUrl = i.getStringExtra("rom_info_delta_url");
+        info.deltaMd5 = i.getStringExtra("rom_info_delta_md5");
+        return info;
     }
 
     public void addToIntent(Intent i) {
@@ -95,8 +108,13 @@ public class RomInfo implements Parcelable, Serializable {
         i.putExtra("rom_info_version", version);
         i.putExtra("rom_info_changelog", changelog);
         i.putExtra("rom_info_url", url);
+        i.putExtra("rom_info_mirrors", Utils.joinMirrors(mirrors));
         i.putExtra("rom_info_md5", md5);
         i.putExtra("rom_info_date", Utils.formatDate(date));
+        i.putExtra("rom_info_sha256", sha256);
+        i.putExtra("rom_info_delta_from", deltaFrom);
+        i.putExtra("rom_info_delta_url", deltaUrl);
+        i.putExtra("rom_info_delta_md5", deltaMd5);
     }
 
     @Override
@@ -110,8 +128,13 @@ public class RomInfo implements Parcelable, Serializable {
         dest.writeString(version);
         dest.writeString(changelog);
         dest.writeString(url);
+        dest.writeStringArray(mirrors);
         dest.writeString(md5);
         dest.writeLong(date.getTime());
+        dest.writeString(sha256);
+        dest.writeString(deltaFrom);
+        dest.writeString(deltaUrl);
+        dest.writeString(deltaMd5);
     }
 
     public static final Creator<RomInfo> CREATOR = new Creator<RomInfo>() {
@@ -122,13 +145,19 @@ public class RomInfo implements Parcelable, Serializable {
 
         @Override
         public RomInfo createFromParcel(Parcel source) {
-            return new RomInfo(
+            RomInfo info = new RomInfo(
                     source.readString(),
                     source.readString(),
                     source.readString(),
                     source.readString(),
+                    source.createStringArray(),
                     source.readString(),
                     new Date(source.readLong()));
+            info.sha256 = source.readString();
+            info.deltaFrom = source.readString();
+            info.deltaUrl = source.readString();
+            info.deltaMd5 = source.readString();
+            return info;
         }
     };
 
@@ -164,10 +193,15 @@ public class RomInfo implements Parcelable, Serializable {
     }
 
     public void downloadFileSilent(Context ctx) {
+        downloadFileSilent(ctx, DlState.PRIORITY_INTERACTIVE);
+    }
+
+    public void downloadFileSilent(Context ctx, int priority) {
         Intent i = new Intent(ctx, DownloadService.class);
         i.setAction(DownloadService.SERVICE_ACTION);
         i.putExtra(DownloadService.EXTRA_CMD, DownloadService.CMD_DOWNLOAD);
         i.putExtra(DownloadService.EXTRA_INFO_TYPE, DownloadService.EXTRA_INFO_TYPE_ROM);
+        i.putExtra(DownloadService.EXTRA_PRIORITY, priority);
         this.addToIntent(i);
         ctx.startService(i);
     }
@@ -185,7 +219,7 @@ public class RomInfo implements Parcelable, Serializable {
             public void onServiceConnected(ComponentName name, IBinder stub) {
                 final IDownloadService service = IDownloadService.Stub.asInterface(stub);
                 try {
-                    final int dlID = service.queueRomDownload(RomInfo.this);
+                    final int dlID = service.queueRomDownload(RomInfo.this, DlState.PRIORITY_INTERACTIVE);
                     tempDlg.dismiss();
                     if (callback != null) callback.onDialogClosed(tempDlg);
                     RomInfo.clearUpdateNotif(ctx);
@@ -210,6 +244,29 @@ public class RomInfo implements Parcelable, Serializable {
         return Utils.sanitizeName(romName + "__" + version + ".zip");
     }
 
+    public void parseDelta(JSONObject json) {
+        JSONObject delta = json.optJSONObject("delta");
+        if (delta == null) return;
+        deltaFrom = delta.optString("from", null);
+        deltaUrl = delta.optString("url", null);
+        deltaMd5 = delta.optString("md5", null);
+    }
+
+    public boolean hasDelta() {
+        return deltaFrom != null && deltaUrl != null;
+    }
+
+    /* the previously downloaded zip of the installed version, which a delta is applied against */
+    public File getDeltaBaseFile() {
+        if (!hasDelta() || !deltaFrom.equals(PropUtils.getRomOtaVersion())) return null;
+        File base = new File(Config.ROM_DL_PATH_FILE, Utils.sanitizeName(romName + "__" + deltaFrom + ".zip"));
+        return base.exists() ? base : null;
+    }
+
+    public String getDeltaFileName() {
+        return getDownloadFileName() + ".delta";
+    }
+
     public void showUpdateDialog(final Context ctx, final DownloadDialogCallback callback) {
         AlertDialog.Builder builder = new AlertDialog.Builder(ctx);
         builder.setTitle(R.string.alert_update_title);
@@ -331,7 +388,7 @@ public class RomInfo implements Parcelable, Serializable {
                 params.add(new BasicNameValuePair("device", android.os.Build.DEVICE.toLowerCase()));
                 params.add(new BasicNameValuePair("rom", PropUtils.getRomOtaID()));
 
-                HttpClient client = new DefaultHttpClient();
+                HttpClient client = SharedHttpClient.get();
                 HttpGet get = new HttpGet(Config.ROM_PULL_URL + "?" + URLEncodedUtils.format(params, "UTF-8"));
                 HttpResponse r = client.execute(get);
                 int status = r.getStatusLine().getStatusCode();
@@ -346,13 +403,17 @@ public class RomInfo implements Parcelable, Serializable {
                         return null;
                     }
 
-                    return new RomInfo(
+                    RomInfo info = new RomInfo(
                             json.getString("name"),
                             json.getString("version"),
                             json.getString("changelog"),
                             json.getString("url"),
+                            Utils.parseMirrors(json),
                             json.getString("md5"),
                             Utils.parseDate(json.getString("date")));
+                    info.sha256 = json.optString("sha256", null);
+                    info.parseDelta(json);
+                    return info;
                 } else {
                     if (e != null) e.consumeContent();
                     error = "Server responded with error " + status;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/*
+ * Application wide HTTP client backed by a thread safe connection pool so requests to the
+ * same host (downloads, redirect hops, info fetches) reuse kept-alive connections.
+ * Responses must be consumed or their request aborted to hand the connection back.
+ */
+public class SharedHttpClient {
+    private static DefaultHttpClient client = null;
+
+    private static final AtomicLong numRequests = new AtomicLong();
+    private static final AtomicLong numReused = new AtomicLong();
+
+    public static synchronized HttpClient get() {
+        if (client != null) return client;
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, Config.HTTP_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, Config.HTTP_SOCKET_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpProtocolParams.setUserAgent(params, Config.HTTPC_UA);
+        ConnManagerParams.setTimeout(params, Config.HTTP_CONNECT_TIMEOUT);
+        ConnManagerParams.setMaxTotalConnections(params, Config.HTTP_MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(Config.HTTP_MAX_HOST_CONNECTIONS));
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = serverStrategy.getKeepAliveDuration(response, context);
+                return duration <= 0 ? Config.HTTP_KEEPALIVE : Math.min(duration, Config.HTTP_KEEPALIVE);
+            }
+        });
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                numRequests.incrementAndGet();
+                HttpConnection conn = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                if (conn != null && conn.getMetrics().getRequestCount() > 0) numReused.incrementAndGet();
+            }
+        });
+
+        return client;
+    }
+
+    public static long getNumRequests() {
+        return numRequests.get();
+    }
+
+    public static long getNumReused() {
+        return numReused.get();
+    }
+
+    public static void logStats() {
+        Log.v(Config.LOG_TAG + "HTTP", "reused connections for " + numReused.get() + " of " + numRequests.get() + " requests");
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/*
+ * Append-only journal of the download service state. After a magic and version header
+ * the file is a run of records:
+ *
+ *   <type byte> <payload length int> <payload> <crc32 of payload int>
+ *
+ * A state record holds one serialized DlState and is only written when that download
+ * changes status, a progress record holds its byte counts, digest and verified chunks, a
+ * queue record the queued ids and a remove record drops a download that moved to the
+ * DownloadRegistry. Once the records outgrow COMPACT_FACTOR times the last snapshot, every
+ * state is written to a fresh file that is synced and renamed over the journal. Replay
+ * stops at the first torn or corrupt record, so a crash mid-append loses only that record.
+ */
+public class StateJournal {
+    private static final int MAGIC = 0x4f54414a; //OTAJ
+    private static final int VERSION = 1;
+
+    private static final byte REC_STATE = 1;
+    private static final byte REC_PROGRESS = 2;
+    private static final byte REC_QUEUE = 3;
+    private static final byte REC_REMOVE = 4;
+
+    private static final int MAX_RECORD = 16777216;
+    private static final long MIN_COMPACT_SIZE = 65536;
+    private static final int COMPACT_FACTOR = 4;
+
+    private final File file;
+    private final File tmpFile;
+    private FileOutputStream out = null;
+    private long size = 0;
+    private long snapshotSize = 0;
+    private boolean torn = false;
+
+    private final HashMap<Integer, Long> lastProgress = new HashMap<Integer, Long>();
+    private ArrayList<Integer> lastQueue = null;
+
+    private final long statsStart = SystemClock.elapsedRealtime();
+    private long bytesWritten = 0;
+    private int numRecords = 0;
+    private int numCompactions = 0;
+
+    public StateJournal(File file) {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+    }
+
+    /* replays the journal into downloads and queue, false if there is no journal to read */
+    public synchronized boolean load(SparseArray<DlState> downloads, List<Integer> queue) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        int numRead = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(Config.LOG_TAG + "Journal", "unknown state journal format");
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type = in.read();
+                if (type == -1) break;
+                int len = in.readInt();
+                if (len < 0 || len > MAX_RECORD) throw new IOException("bad record length " + len);
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if (in.readInt() != (int) crc.getValue()) throw new IOException("bad record checksum");
+                apply(type, payload, downloads, queue);
+                numRead++;
+            }
+        } catch (EOFException e) {
+            Log.w(Config.LOG_TAG + "Journal", "state journal ends in a torn record");
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "Journal", "dropping state journal after record " + numRead + ": " + e.getMessage());
+        } finally {
+            try { in.close(); }
+            catch (IOException e) { }
+        }
+        Log.v(Config.LOG_TAG + "Journal", "replayed " + numRead + " records, " + downloads.size() + " downloads");
+        return true;
+    }
+
+    private static void apply(int type, byte[] payload, SparseArray<DlState> downloads, List<Integer> queue) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (type) {
+        case REC_STATE:
+            DlState state = DlState.deserialize(payload);
+            downloads.put(state.getId(), state);
+            break;
+        case REC_REMOVE:
+            downloads.remove(data.readInt());
+            break;
+        case REC_PROGRESS:
+            DlState progressed = downloads.get(data.readInt());
+            if (progressed == null) break;
+            long totalDone = data.readLong();
+            long[] segmentDone = new long[data.readInt()];
+            for (int q = 0; q < segmentDone.length; q++) {
+                segmentDone[q] = data.readLong();
+            }
+            // records from before the digest and chunks were added end here
+            Md5 digest = null;
+            boolean[] chunkVerified = null;
+            if (data.available() > 0) {
+                if (data.readBoolean()) digest = Md5.readFrom(data);
+                int numChunks = data.readInt();
+                if (numChunks > 0) {
+                    chunkVerified = new boolean[numChunks];
+                    byte[] bits = new byte[(numChunks + 7) / 8];
+                    data.readFully(bits);
+                    for (int q = 0; q < numChunks; q++) {
+                        chunkVerified[q] = (bits[q >> 3] & (1 << (q & 7))) != 0;
+                    }
+                }
+            }
+            progressed.restoreProgress(totalDone, segmentDone, digest, chunkVerified);
+            break;
+        case REC_QUEUE:
+            queue.clear();
+            for (int q = data.readInt(); q > 0; q--) {
+                queue.add(data.readInt());
+            }
+            break;
+        default:
+            // written by a newer version, its length lets us step over it
+            break;
+        }
+    }
+
+    public synchronized void writeState(DlState state) {
+        try {
+            append(REC_STATE, state.serialize(), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* the download moved to the DownloadRegistry, so it is no longer replayed */
+    public synchronized void writeRemove(int id) {
+        lastProgress.remove(id);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(4);
+        try {
+            new DataOutputStream(buf).writeInt(id);
+            append(REC_REMOVE, buf.toByteArray(), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void writeQueue(List<Integer> queue) {
+        if (queue.equals(lastQueue)) return;
+        try {
+            append(REC_QUEUE, serialize(queue), true);
+            lastQueue = new ArrayList<Integer>(queue);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Not synced, a progress record lost to a power cut only loses progress since the one before.
+     * It also carries the inline digest and the verified chunks, so a replay picks hashing and
+     * chunk checks up where they were instead of going over the whole prefix again.
+     */
+    public synchronized void writeProgress(DlState state, long minInterval) {
+        long now = SystemClock.elapsedRealtime();
+        Long last = lastProgress.get(state.getId());
+        if (last != null && now - last < minInterval) return;
+        lastProgress.put(state.getId(), now);
+
+        int numChunks = state.getNumChunks();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(112 + state.getNumSegments() * 8 + numChunks / 8);
+        DataOutputStream data = new DataOutputStream(buf);
+        try {
+            data.writeInt(state.getId());
+            data.writeLong(state.getTotalDone());
+            data.writeInt(state.getNumSegments());
+            for (int q = 0; q < state.getNumSegments(); q++) {
+                data.writeLong(state.getSegmentDone(q));
+            }
+
+            Md5 digest = state.getDigest();
+            data.writeBoolean(digest != null);
+            if (digest != null) digest.writeTo(data);
+            data.writeInt(numChunks);
+            if (numChunks > 0) {
+                byte[] bits = new byte[(numChunks + 7) / 8];
+                for (int q = 0; q < numChunks; q++) {
+                    if (state.isChunkVerified(q)) bits[q >> 3] |= 1 << (q & 7);
+                }
+                data.write(bits);
+            }
+            append(REC_PROGRESS, buf.toByteArray(), false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean needsCompaction() {
+        return torn || size > Math.max(MIN_COMPACT_SIZE, snapshotSize * COMPACT_FACTOR);
+    }
+
+    /* writes a snapshot of everything to a new file and atomically replaces the journal with it */
+    public synchronized boolean compact(SparseArray<DlState> downloads, List<Integer> queue) {
+        closeOut();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmpFile);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(fos));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            synchronized (downloads) {
+                for (int q = 0; q < downloads.size(); q++) {
+                    writeRecord(data, REC_STATE, downloads.valueAt(q).serialize());
+                }
+            }
+            writeRecord(data, REC_QUEUE, serialize(queue));
+            data.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!tmpFile.renameTo(file)) throw new IOException("could not replace " + file);
+            size = snapshotSize = file.length();
+            torn = false;
+            bytesWritten += size;
+            lastQueue = new ArrayList<Integer>(queue);
+            numCompactions++;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            return false;
+        } finally {
+            if (fos != null) {
+                try { fos.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closeOut();
+    }
+
+    /* everything appended or snapshotted since the journal was opened, compactions included */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized int getNumCompactions() {
+        return numCompactions;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - statsStart, 1);
+        pw.println("State journal: " + size + " bytes (snapshot " + snapshotSize + "), " + numRecords + " records, " +
+                numCompactions + " compactions, " + (bytesWritten * 1000 / elapsed) + "B/s written");
+    }
+
+    private void append(byte type, byte[] payload, boolean sync) throws IOException {
+        if (out == null) {
+            boolean fresh = !file.exists() || file.length() == 0;
+            out = new FileOutputStream(file, true);
+            if (fresh) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                size = 8;
+            } else {
+                size = file.length();
+            }
+        }
+
+        // one write per record, so a crash can only tear the last one
+        ByteArrayOutputStream rec = new ByteArrayOutputStream(payload.length + 9);
+        writeRecord(new DataOutputStream(rec), type, payload);
+        try {
+            rec.writeTo(out);
+            if (sync) out.getFD().sync();
+        } catch (IOException e) {
+            // records after a partial one would be dropped on replay, so the next save compacts
+            torn = true;
+            closeOut();
+            throw e;
+        }
+        size += rec.size();
+        bytesWritten += rec.size();
+        numRecords++;
+    }
+
+    private static void writeRecord(DataOutputStream data, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        data.writeByte(type);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] serialize(List<Integer> queue) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(4 + queue.size() * 4);
+        DataOutputStream data = new DataOutputStream(buf);
+        data.writeInt(queue.size());
+        for (int id : queue) {
+            data.writeInt(id);
+        }
+        return buf.toByteArray();
+    }
+
+    private void closeOut() {
+        if (out == null) return;
+        try { out.close(); }
+        catch (IOException e) { }
+        out = null;
+    }
+}
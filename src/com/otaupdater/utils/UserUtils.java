@@ -32,7 +32,6 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -145,7 +144,7 @@ public class UserUtils {
 
         @Override
         protected Boolean doInBackground(Void... unused) {
-            HttpClient httpc = AndroidHttpClient.newInstance(Config.HTTPC_UA, ctx);
+            HttpClient httpc = SharedHttpClient.get();
 
             ArrayList<BasicNameValuePair> params = new ArrayList<BasicNameValuePair>();
             params.add(new BasicNameValuePair("username", username));
@@ -169,6 +168,7 @@ public class UserUtils {
                         //TODO error
                     }
                 } else {
+                    if (entity != null) entity.consumeContent();
                     Log.w(Config.LOG_TAG + "Login", "bad server response (" + resp.getStatusLine().getStatusCode() + ")");
                 }
             } catch (Exception e) {
@@ -17,9 +17,6 @@
 package com.otaupdater.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.security.MessageDigest;
 import java.text.Normalizer;
 import java.text.ParseException;
@@ -35,9 +32,10 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
@@ -52,6 +50,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.StatFs;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -75,26 +74,10 @@ public class Utils {
     }
 
     public static String md5(File f) {
-        InputStream in = null;
         try {
-            in = new FileInputStream(f);
-
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-
-            byte[] buf = new byte[4096];
-            int nRead = -1;
-            while ((nRead = in.read(buf)) != -1) {
-                digest.update(buf, 0, nRead);
-            }
-
-            return byteArrToStr(digest.digest());
+            return MultiHasher.hash(f, MultiHasher.MD5).md5;
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (in != null) {
-                try { in.close(); }
-                catch (IOException e) { }
-            }
         }
         return "";
     }
@@ -222,6 +205,11 @@ public class Utils {
         return ni != null && ni.isConnected();
     }
 
+    public static long getAvailableSpace(File dir) {
+        StatFs stat = new StatFs(dir.getAbsolutePath());
+        return ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
+    }
+
     public static Date parseDate(String date) {
         if (date == null) return null;
         try {
@@ -237,6 +225,35 @@ public class Utils {
         return new SimpleDateFormat("yyyyMMdd-kkmm").format(date);
     }
 
+    public static String formatTime(long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(millis));
+    }
+
+    public static String[] parseMirrors(JSONObject json) throws JSONException {
+        JSONArray arr = json.optJSONArray("mirrors");
+        if (arr == null || arr.length() == 0) return null;
+        String[] mirrors = new String[arr.length()];
+        for (int q = 0; q < mirrors.length; q++) {
+            mirrors[q] = arr.getString(q);
+        }
+        return mirrors;
+    }
+
+    public static String[] splitMirrors(String mirrors) {
+        if (mirrors == null || mirrors.trim().length() == 0) return null;
+        return mirrors.trim().split("\\s+");
+    }
+
+    public static String joinMirrors(String[] mirrors) {
+        if (mirrors == null || mirrors.length == 0) return null;
+        StringBuilder sb = new StringBuilder();
+        for (String mirror : mirrors) {
+            if (sb.length() != 0) sb.append(' ');
+            sb.append(mirror);
+        }
+        return sb.toString();
+    }
+
     public static boolean isRomUpdate(RomInfo info) {
         if (info == null) return false;
         if (info.date != null) {
@@ -283,7 +300,7 @@ public class Utils {
         params.add(new BasicNameValuePair("app_version", version + ""));
 
         try {
-            HttpClient http = new DefaultHttpClient();
+            HttpClient http = SharedHttpClient.get();
             HttpPost req = new HttpPost(Config.GCM_REGISTER_URL);
             req.setEntity(new UrlEncodedFormEntity(params));
 
@@ -319,8 +336,11 @@ public class Utils {
                             jsonRom.getString("version"),
                             jsonRom.getString("changelog"),
                             jsonRom.getString("url"),
+                            Utils.parseMirrors(jsonRom),
                             jsonRom.getString("md5"),
                             Utils.parseDate(jsonRom.getString("date")));
+                    info.sha256 = jsonRom.optString("sha256", null);
+                    info.parseDelta(jsonRom);
 
                     if (Utils.isRomUpdate(info)) {
                         cfg.storeRomUpdate(info);
@@ -343,8 +363,10 @@ public class Utils {
                             jsonKernel.getString("version"),
                             jsonKernel.getString("changelog"),
                             jsonKernel.getString("url"),
+                            Utils.parseMirrors(jsonKernel),
                             jsonKernel.getString("md5"),
                             Utils.parseDate(jsonKernel.getString("date")));
+                    info.sha256 = jsonKernel.optString("sha256", null);
 
                     if (Utils.isKernelUpdate(info)) {
                         cfg.storeKernelUpdate(info);
@@ -0,0 +1,14 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_PACKAGE_NAME := OTAUpdaterTests
+LOCAL_INSTRUMENTATION_FOR := OTAUpdater
+LOCAL_CERTIFICATE := platform
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class BlockManifestTest extends TestCase {
+    private static final String BLOCK = "0123abcd 0123456789abcdef0123456789abcdef";
+
+    private static BlockManifest parse(String text) throws IOException {
+        return BlockManifest.parse(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+    }
+
+    private static void assertBad(String text) {
+        try {
+            parse(text);
+            fail("parsed a bad manifest: " + text);
+        } catch (IOException e) {
+        }
+    }
+
+    public void testParsesBlocksAndShortTail() throws IOException {
+        BlockManifest manifest = parse("OTABLOCKS 1\nsize 40\nblocksize 16\n" + BLOCK + "\n" + BLOCK + "\n" + BLOCK + "\n");
+        assertEquals(40, manifest.getSize());
+        assertEquals(16, manifest.getBlockSize());
+        assertEquals(3, manifest.getNumBlocks());
+        assertEquals(2, manifest.getNumFullBlocks());
+        assertEquals(16, manifest.getBlockStart(1));
+        assertEquals(31, manifest.getBlockEnd(1));
+        assertEquals(32, manifest.getBlockStart(2));
+        assertEquals(39, manifest.getBlockEnd(2));
+        assertEquals(0x0123abcd, manifest.getWeak(0));
+        assertTrue(Arrays.equals(new byte[] { 0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef,
+                0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef }, manifest.getStrong(2)));
+    }
+
+    public void testParsesHighWeakChecksum() throws IOException {
+        BlockManifest manifest = parse("OTABLOCKS 1\nsize 16\nblocksize 16\nffffffff 0123456789abcdef0123456789abcdef\n");
+        assertEquals(-1, manifest.getWeak(0));
+    }
+
+    public void testRejectsBadHeader() {
+        assertBad("");
+        assertBad("OTABLOCKS 2\nsize 16\nblocksize 16\n" + BLOCK + "\n");
+        assertBad("OTABLOCKS 1\nblocksize 16\n" + BLOCK + "\n");
+        assertBad("OTABLOCKS 1\nsize 16\n");
+        assertBad("OTABLOCKS 1\nsize sixteen\nblocksize 16\n" + BLOCK + "\n");
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 0\n");
+        assertBad("OTABLOCKS 1\nsize -16\nblocksize 16\n");
+    }
+
+    public void testRejectsTruncatedManifest() {
+        assertBad("OTABLOCKS 1\nsize 40\nblocksize 16\n" + BLOCK + "\n" + BLOCK + "\n");
+        assertBad("OTABLOCKS 1\nsize 40\nblocksize 16\n");
+    }
+
+    public void testRejectsBadBlockLines() {
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 16\n0123abc 0123456789abcdef0123456789abcdef\n");
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 16\n0123abcd 0123456789abcdef0123456789abcde\n");
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 16\n0123abcd\n");
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 16\n0123abcg 0123456789abcdef0123456789abcdef\n");
+        assertBad("OTABLOCKS 1\nsize 16\nblocksize 16\n0123abcd 0123456789abcdef0123456789abcdeg\n");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BlockMatcherTest extends TestCase {
+    private static final int BLOCK_SIZE = 64;
+
+    /* three full blocks and a 10 byte tail */
+    private byte[] remote;
+    private BlockManifest manifest;
+    private File local;
+
+    @Override
+    protected void setUp() throws Exception {
+        remote = random(3 * BLOCK_SIZE + 10, 1);
+
+        StringBuilder text = new StringBuilder("OTABLOCKS 1\nsize " + remote.length + "\nblocksize " + BLOCK_SIZE + "\n");
+        for (int off = 0; off < remote.length; off += BLOCK_SIZE) {
+            int len = Math.min(BLOCK_SIZE, remote.length - off);
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(remote, off, len);
+            text.append(String.format("%08x ", BlockMatcher.weakChecksum(remote, off, len)));
+            for (byte b : md5.digest()) text.append(String.format("%02x", b & 0xff));
+            text.append('\n');
+        }
+        manifest = BlockManifest.parse(new ByteArrayInputStream(text.toString().getBytes("US-ASCII")));
+
+        local = File.createTempFile("blockmatcher", ".zip");
+    }
+
+    @Override
+    protected void tearDown() {
+        local.delete();
+    }
+
+    private static byte[] random(int len, long seed) {
+        byte[] data = new byte[len];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private void writeLocal(Object... parts) throws IOException {
+        FileOutputStream out = new FileOutputStream(local);
+        try {
+            for (Object part : parts) {
+                if (part instanceof byte[]) {
+                    out.write((byte[]) part);
+                } else {
+                    int block = (Integer) part;
+                    int off = block * BLOCK_SIZE;
+                    out.write(remote, off, Math.min(BLOCK_SIZE, remote.length - off));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testRollingChecksumMatchesDirectOne() throws IOException {
+        writeLocal(random(1, 2), 0);
+        BlockMatcher matcher = new BlockMatcher(manifest);
+        assertEquals(1, matcher.scan(local));
+        assertEquals(1, matcher.getSourceOffset(0));
+    }
+
+    public void testFindsBlocksAtUnalignedOffsets() throws IOException {
+        writeLocal(random(7, 3), 1, random(3, 4), 0, 2);
+        BlockMatcher matcher = new BlockMatcher(manifest);
+        assertEquals(3, matcher.scan(local));
+        assertTrue(matcher.isComplete());
+        assertEquals(local, matcher.getSource(1));
+        assertEquals(7, matcher.getSourceOffset(1));
+        assertEquals(7 + BLOCK_SIZE + 3, matcher.getSourceOffset(0));
+        assertEquals(7 + 2 * BLOCK_SIZE + 3, matcher.getSourceOffset(2));
+        assertEquals(3 * BLOCK_SIZE, matcher.getMatchedBytes());
+    }
+
+    public void testNeverMatchesShortTail() throws IOException {
+        writeLocal(3, random(BLOCK_SIZE, 5), 3);
+        BlockMatcher matcher = new BlockMatcher(manifest);
+        assertEquals(0, matcher.scan(local));
+        assertFalse(matcher.isMatched(3));
+        assertEquals(3, manifest.getNumFullBlocks());
+        assertEquals(remote.length - 1, manifest.getBlockEnd(3));
+    }
+
+    public void testKeepsFirstSourceOfEachBlock() throws IOException {
+        writeLocal(2, 2);
+        BlockMatcher matcher = new BlockMatcher(manifest);
+        assertEquals(1, matcher.scan(local));
+        assertEquals(0, matcher.getSourceOffset(2));
+        assertEquals(1, matcher.getNumMatched());
+        assertFalse(matcher.isComplete());
+    }
+
+    public void testRejectsWeakOnlyMatch() throws IOException {
+        String text = String.format("OTABLOCKS 1\nsize %d\nblocksize %d\n%08x %032x\n", BLOCK_SIZE, BLOCK_SIZE,
+                BlockMatcher.weakChecksum(remote, 0, BLOCK_SIZE), 0);
+        BlockMatcher matcher = new BlockMatcher(BlockManifest.parse(new ByteArrayInputStream(text.getBytes("US-ASCII"))));
+        writeLocal(0);
+        assertEquals(0, matcher.scan(local));
+        assertFalse(matcher.isMatched(0));
+    }
+}
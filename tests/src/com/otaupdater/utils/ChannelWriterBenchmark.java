@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/*
+ * Downloads a file from a local HTTP server through the old write path (a 4KB array into
+ * a FileOutputStream) and through ChannelWriter, and prints wall time, throughput, CPU
+ * time of the downloading thread and the number of writes, best of RUNS each. It runs
+ * once as fast as loopback allows and once with the server paced to PACED_RATE.
+ */
+public class ChannelWriterBenchmark extends TestCase {
+    private static final int RUNS = 3;
+    private static final int FULL_MB = 256;
+    private static final int PACED_MB = 64;
+    private static final int PACED_RATE = 16 << 20;
+
+    private File dest;
+    private ServerSocket server;
+
+    @Override
+    protected void setUp() throws Exception {
+        dest = File.createTempFile("channelwriter", ".zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null) server.close();
+        dest.delete();
+    }
+
+    @LargeTest
+    public void testUnpaced() throws Exception {
+        run(FULL_MB, 0);
+    }
+
+    @LargeTest
+    public void testPaced() throws Exception {
+        run(PACED_MB, PACED_RATE);
+    }
+
+    private void run(int sizeMb, int rate) throws Exception {
+        long size = (long) sizeMb << 20;
+        URL url = serve(size, rate);
+
+        Result stream = null, channel = null, hashed = null;
+        for (int q = 0; q < RUNS; q++) {
+            stream = Result.best(stream, downloadStream(url, size));
+            channel = Result.best(channel, downloadChannel(url, size, null));
+            hashed = Result.best(hashed, downloadChannel(url, size, new Md5()));
+        }
+
+        String label = "ChannelWriterBenchmark: " + sizeMb + "MB " + (rate == 0 ? "unpaced" : "paced at " + (rate >> 20) + "MB/s");
+        System.out.println(label + ", 4KB stream: " + stream);
+        System.out.println(label + ", ChannelWriter: " + channel);
+        System.out.println(label + ", ChannelWriter + Md5: " + hashed);
+    }
+
+    /* the write path before ChannelWriter */
+    private Result downloadStream(URL url, long size) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        Result result = new Result();
+        InputStream in = conn.getInputStream();
+        FileOutputStream out = new FileOutputStream(dest, false);
+        try {
+            byte[] buf = new byte[4096];
+            int nRead;
+            while ((nRead = in.read(buf)) != -1) {
+                out.write(buf, 0, nRead);
+                result.writes++;
+                result.bytes += nRead;
+            }
+        } finally {
+            out.close();
+            in.close();
+            conn.disconnect();
+        }
+        assertEquals(size, result.bytes);
+        return result.stop();
+    }
+
+    private Result downloadChannel(URL url, long size, Md5 digest) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        Result result = new Result();
+        InputStream in = conn.getInputStream();
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        raf.setLength(size);
+        ChannelWriter out = new ChannelWriter(raf.getChannel(), 0);
+        out.setDigest(digest);
+        try {
+            while (out.readFrom(in) != -1) { }
+        } finally {
+            out.close();
+            in.close();
+            conn.disconnect();
+        }
+        result.bytes = out.getBytesWritten();
+        result.writes = out.getNumWrites();
+        assertEquals(size, result.bytes);
+        return result.stop();
+    }
+
+    /* serves size bytes to every request, at most rate bytes per second unless rate is 0 */
+    private URL serve(final long size, final int rate) throws IOException {
+        server = new ServerSocket(0);
+        final byte[] chunk = new byte[65536];
+        new Random(1).nextBytes(chunk);
+        Thread accept = new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    Socket s;
+                    try {
+                        s = server.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    try {
+                        InputStream req = s.getInputStream();
+                        int c, prev = -1, crlf = 0;
+                        while (crlf < 2 && (c = req.read()) != -1) {
+                            if (c == '\n') crlf = prev == '\r' || prev == '\n' ? crlf + 1 : 1;
+                            else if (c != '\r') crlf = 0;
+                            prev = c;
+                        }
+
+                        OutputStream out = s.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                        long start = System.nanoTime();
+                        for (long sent = 0; sent < size; ) {
+                            int n = (int) Math.min(chunk.length, size - sent);
+                            out.write(chunk, 0, n);
+                            sent += n;
+                            if (rate != 0) {
+                                long due = start + sent * 1000000000L / rate;
+                                long wait = due - System.nanoTime();
+                                if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                        }
+                        out.flush();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        try { s.close(); }
+                        catch (IOException e) { }
+                    }
+                }
+            }
+        };
+        accept.setDaemon(true);
+        accept.start();
+        return new URL("http://127.0.0.1:" + server.getLocalPort() + "/rom.zip");
+    }
+
+    private static class Result {
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final long startNanos = System.nanoTime();
+        private final long startCpu = THREADS.getCurrentThreadCpuTime();
+        private long nanos;
+        private long cpuNanos;
+        private long bytes = 0;
+        private long writes = 0;
+
+        private Result stop() {
+            nanos = System.nanoTime() - startNanos;
+            cpuNanos = THREADS.getCurrentThreadCpuTime() - startCpu;
+            return this;
+        }
+
+        private static Result best(Result lhs, Result rhs) {
+            return lhs == null || rhs.cpuNanos < lhs.cpuNanos ? rhs : lhs;
+        }
+
+        @Override
+        public String toString() {
+            return nanos / 1000000 + "ms wall, " + (bytes * 1000000000L / nanos >> 20) + "MB/s, " +
+                    cpuNanos / 1000000 + "ms cpu (" + cpuNanos / (bytes >> 20) / 1000 + "us/MB), " + writes + " writes";
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChunkManifestTest extends TestCase {
+    private static final int CHUNK_SIZE = 64;
+
+    /* two full chunks and a 10 byte tail */
+    private byte[] data;
+    private String[] hashes;
+    private String root;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = new byte[2 * CHUNK_SIZE + 10];
+        new Random(1).nextBytes(data);
+
+        hashes = new String[3];
+        MessageDigest rootDigest = MessageDigest.getInstance("SHA-256");
+        for (int q = 0; q < hashes.length; q++) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, q * CHUNK_SIZE, Math.min(CHUNK_SIZE, data.length - q * CHUNK_SIZE));
+            byte[] hash = digest.digest();
+            rootDigest.update(hash);
+            hashes[q] = hex(hash);
+        }
+        root = hex(rootDigest.digest());
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    private String manifest(int numHashes, String rootLine) {
+        StringBuilder text = new StringBuilder("OTACHUNKS 1\nsize " + data.length + "\nchunksize " + CHUNK_SIZE + "\n");
+        for (int q = 0; q < numHashes; q++) text.append(hashes[q]).append('\n');
+        if (rootLine != null) text.append(rootLine).append('\n');
+        return text.toString();
+    }
+
+    private static ChunkManifest parse(String text) throws IOException {
+        return ChunkManifest.parse(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+    }
+
+    private static void assertBad(String text) {
+        try {
+            parse(text);
+            fail("parsed a bad manifest: " + text);
+        } catch (IOException e) {
+        }
+    }
+
+    public void testParsesChunksAndShortTail() throws IOException {
+        ChunkManifest manifest = parse(manifest(3, "root " + root));
+        assertEquals(data.length, manifest.getSize());
+        assertEquals(CHUNK_SIZE, manifest.getChunkSize());
+        assertEquals(3, manifest.getNumChunks());
+        assertEquals(128, manifest.getChunkStart(2));
+        assertEquals(137, manifest.getChunkEnd(2));
+        assertEquals(10, manifest.getChunkLength(2));
+    }
+
+    public void testRootIsOptional() throws IOException {
+        assertEquals(3, parse(manifest(3, null)).getNumChunks());
+    }
+
+    public void testRejectsRootMismatch() {
+        assertBad(manifest(3, "root " + hashes[0]));
+    }
+
+    public void testRejectsTruncatedManifest() {
+        assertBad(manifest(2, null));
+        assertBad(manifest(0, null));
+    }
+
+    public void testRejectsBadHeader() {
+        assertBad("");
+        assertBad("OTACHUNKS 2\nsize 10\nchunksize 64\n" + hashes[0] + "\n");
+        assertBad("OTACHUNKS 1\nchunksize 64\n" + hashes[0] + "\n");
+        assertBad("OTACHUNKS 1\nsize ten\nchunksize 64\n" + hashes[0] + "\n");
+        assertBad("OTACHUNKS 1\nsize 10\nchunksize 6x\n" + hashes[0] + "\n");
+        assertBad("OTACHUNKS 1\nsize 0\nchunksize 64\n");
+        assertBad("OTACHUNKS 1\nsize 10\nchunksize " + (Config.DL_CHUNK_MAX_SIZE + 1) + "\n" + hashes[0] + "\n");
+    }
+
+    public void testRejectsBadHashLines() {
+        assertBad("OTACHUNKS 1\nsize 10\nchunksize 64\n" + hashes[0].substring(1) + "\n");
+        assertBad("OTACHUNKS 1\nsize 10\nchunksize 64\n" + hashes[0].substring(1) + "g\n");
+    }
+
+    public void testMatchesAndVerifiesChunks() throws IOException {
+        ChunkManifest manifest = parse(manifest(3, "root " + root));
+        byte[] tail = new byte[CHUNK_SIZE];
+        System.arraycopy(data, 2 * CHUNK_SIZE, tail, 0, 10);
+        assertTrue(manifest.matches(2, tail));
+
+        data[CHUNK_SIZE + 5] ^= 1;
+        File f = File.createTempFile("chunkmanifest", ".zip");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(data);
+            out.close();
+            assertTrue(manifest.verify(0, f));
+            assertFalse(manifest.verify(1, f));
+            assertTrue(manifest.verify(2, f));
+        } finally {
+            f.delete();
+        }
+    }
+}
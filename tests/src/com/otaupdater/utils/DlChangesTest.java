@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class DlChangesTest extends TestCase {
+    private static DlState newState(int id, long totalDone) {
+        RomInfo info = new RomInfo("Example ROM", "2026.10." + id, "changes", "http://dl.example.com/example-" + id + ".zip",
+                new String[0], "0123456789abcdef0123456789abcdef", new Date(0));
+        DlState state = new DlState(info);
+        state.setId(id);
+        state.setTotalSize(1000);
+        state.setTotalDone(totalDone);
+        return state;
+    }
+
+    private static ArrayList<DlState> list(int... ids) {
+        ArrayList<DlState> list = new ArrayList<DlState>();
+        for (int id : ids) list.add(newState(id, 0));
+        return list;
+    }
+
+    private static void assertIds(ArrayList<DlState> list, int... ids) {
+        int[] actual = new int[list.size()];
+        for (int q = 0; q < actual.length; q++) actual[q] = list.get(q).getId();
+        assertEquals(Arrays.toString(ids), Arrays.toString(actual));
+    }
+
+    public void testResetReplacesList() {
+        ArrayList<DlState> list = list(1, 2, 3);
+        DlChanges changes = new DlChanges();
+        changes.reset = true;
+        changes.states.add(newState(4, 0));
+        changes.apply(list, 0);
+        assertIds(list, 4);
+    }
+
+    public void testUpdatesInPlaceWithoutLimit() {
+        ArrayList<DlState> list = list(1, 2, 3);
+        DlChanges changes = new DlChanges();
+        changes.states.add(newState(2, 500));
+        changes.states.add(newState(4, 0));
+        changes.removed = new int[] { 1, 9 };
+        changes.apply(list, 0);
+
+        assertIds(list, 2, 3, 4);
+        assertEquals(500, list.get(0).getTotalDone());
+    }
+
+    public void testKeepsNewestFirstWithLimit() {
+        ArrayList<DlState> list = list(3, 2, 1);
+        DlChanges changes = new DlChanges();
+        changes.states.add(newState(1, 0));
+        changes.states.add(newState(4, 0));
+        changes.apply(list, 3);
+        assertIds(list, 4, 1, 3);
+    }
+
+    public void testRemovesBeforeTrimming() {
+        ArrayList<DlState> list = list(3, 2, 1);
+        DlChanges changes = new DlChanges();
+        changes.states.add(newState(4, 0));
+        changes.removed = new int[] { 2 };
+        changes.apply(list, 3);
+        assertIds(list, 4, 3, 1);
+    }
+
+    public void testAppliesProgressToKnownDownloads() {
+        ArrayList<DlState> list = list(1, 2);
+        DlState running = newState(2, 700);
+        running.setStatus(DlState.STATUS_RUNNING);
+
+        DlChanges changes = new DlChanges();
+        changes.progress = new ProgressSnapshot[] { running.getSnapshot(), newState(5, 900).getSnapshot() };
+        assertFalse(changes.isEmpty());
+        changes.apply(list, 0);
+
+        assertIds(list, 1, 2);
+        assertEquals(0, list.get(0).getTotalDone());
+        assertEquals(700, list.get(1).getTotalDone());
+        assertEquals(DlState.STATUS_RUNNING, list.get(1).getStatus());
+    }
+
+    public void testLimitTrimsList() {
+        ArrayList<DlState> list = list(1, 2);
+        DlChanges changes = new DlChanges();
+        assertTrue(changes.isEmpty());
+        changes.apply(list, 1);
+        assertIds(list, 1);
+    }
+}
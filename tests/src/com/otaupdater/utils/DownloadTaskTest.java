@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import org.apache.http.message.BasicHeader;
+
+import junit.framework.TestCase;
+
+public class DownloadTaskTest extends TestCase {
+    /* Sun, 18 Oct 2026 09:00:00 GMT */
+    private static final long NOW = 1792314000000L;
+
+    public void testRetryAfterSeconds() {
+        assertEquals(120, DownloadTask.parseRetryAfter("120", NOW));
+        assertEquals(7, DownloadTask.parseRetryAfter(" 7 ", NOW));
+        assertEquals(0, DownloadTask.parseRetryAfter("0", NOW));
+        assertEquals(-1, DownloadTask.parseRetryAfter("-5", NOW));
+    }
+
+    public void testRetryAfterDate() {
+        assertEquals(90, DownloadTask.parseRetryAfter("Sun, 18 Oct 2026 09:01:30 GMT", NOW));
+        assertEquals(0, DownloadTask.parseRetryAfter("Sun, 18 Oct 2026 08:00:00 GMT", NOW));
+    }
+
+    public void testRetryAfterGarbage() {
+        assertEquals(-1, DownloadTask.parseRetryAfter("", NOW));
+        assertEquals(-1, DownloadTask.parseRetryAfter("soon", NOW));
+    }
+
+    public void testContentRangeTotal() {
+        assertEquals(1000, DownloadTask.parseContentRangeTotal(new BasicHeader("Content-Range", "bytes 0-99/1000")));
+        assertEquals(1000, DownloadTask.parseContentRangeTotal(new BasicHeader("Content-Range", "bytes */1000")));
+        assertEquals(-1, DownloadTask.parseContentRangeTotal(new BasicHeader("Content-Range", "bytes 0-99/*")));
+        assertEquals(-1, DownloadTask.parseContentRangeTotal(new BasicHeader("Content-Range", "bytes 0-99")));
+        assertEquals(-1, DownloadTask.parseContentRangeTotal(null));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/*
+ * Hashes the same SIZE_MB with Md5 and the platform MessageDigest and prints the best of
+ * RUNS for each, after a warm-up run of both.
+ */
+public class Md5Benchmark extends TestCase {
+    private static final int SIZE_MB = 256;
+    private static final int RUNS = 5;
+
+    @LargeTest
+    public void testThroughput() throws Exception {
+        byte[] buf = new byte[1 << 20];
+        new Random(1).nextBytes(buf);
+
+        byte[] expected = hashPlatform(buf);
+        assertTrue(MessageDigest.isEqual(expected, hashMd5(buf)));
+
+        long md5Best = Long.MAX_VALUE, platformBest = Long.MAX_VALUE;
+        for (int q = 0; q < RUNS; q++) {
+            long start = System.nanoTime();
+            hashMd5(buf);
+            md5Best = Math.min(md5Best, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            hashPlatform(buf);
+            platformBest = Math.min(platformBest, System.nanoTime() - start);
+        }
+
+        System.out.println("Md5Benchmark: " + SIZE_MB + "MB, Md5 " + md5Best / 1000000 + "ms (" + rate(md5Best) +
+                "MB/s), MessageDigest " + platformBest / 1000000 + "ms (" + rate(platformBest) + "MB/s)");
+    }
+
+    private static byte[] hashMd5(byte[] buf) {
+        Md5 digest = new Md5();
+        for (int q = 0; q < SIZE_MB; q++) {
+            digest.update(buf, 0, buf.length);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] hashPlatform(byte[] buf) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        for (int q = 0; q < SIZE_MB; q++) {
+            digest.update(buf, 0, buf.length);
+        }
+        return digest.digest();
+    }
+
+    private static long rate(long nanos) {
+        return SIZE_MB * 1000000000L / nanos;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/*
+ * Hashes a SIZE_MB file with the old Utils.md5 loop (a 4KB array and MessageDigest) and
+ * with MultiHasher, and prints wall and process CPU time, best of RUNS each. Runs once
+ * with the file in the page cache and, where the page cache can be dropped (root only),
+ * once more reading it from storage every time.
+ */
+public class MultiHasherBenchmark extends TestCase {
+    private static final int SIZE_MB = 1024;
+    private static final int RUNS = 3;
+    private static final long CLOCK_TICKS = 100; //USER_HZ of /proc/self/stat
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("multihasher", ".zip");
+        byte[] chunk = new byte[1 << 20];
+        Random random = new Random(1);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int q = 0; q < SIZE_MB; q++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @LargeTest
+    public void testCached() throws Exception {
+        run(false);
+    }
+
+    @LargeTest
+    public void testUncached() throws Exception {
+        if (!dropCaches()) {
+            System.out.println("MultiHasherBenchmark: can't drop the page cache, skipping the uncached run");
+            return;
+        }
+        run(true);
+    }
+
+    private void run(boolean uncached) throws Exception {
+        String expected = oldMd5(file);
+        assertEquals(expected, MultiHasher.hash(file, MultiHasher.MD5).md5);
+
+        long[] old = null, md5 = null, all = null;
+        for (int q = 0; q < RUNS; q++) {
+            if (uncached) dropCaches();
+            long[] start = now();
+            oldMd5(file);
+            old = best(old, since(start));
+
+            if (uncached) dropCaches();
+            start = now();
+            MultiHasher.hash(file, MultiHasher.MD5);
+            md5 = best(md5, since(start));
+
+            if (uncached) dropCaches();
+            start = now();
+            MultiHasher.hash(file, MultiHasher.ALL);
+            all = best(all, since(start));
+        }
+
+        String label = "MultiHasherBenchmark: " + SIZE_MB + "MB " + (uncached ? "uncached" : "cached") + ", " +
+                Runtime.getRuntime().availableProcessors() + " cores, ";
+        System.out.println(label + "old Utils.md5: " + format(old));
+        System.out.println(label + "MultiHasher md5: " + format(md5));
+        System.out.println(label + "MultiHasher md5+sha256+crc32: " + format(all));
+    }
+
+    private static boolean dropCaches() {
+        try {
+            FileOutputStream out = new FileOutputStream("/proc/sys/vm/drop_caches");
+            try {
+                out.write('3');
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* Utils.md5(File) before MultiHasher */
+    private static String oldMd5(File f) throws Exception {
+        InputStream in = new FileInputStream(f);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] buf = new byte[4096];
+            int nRead = -1;
+            while ((nRead = in.read(buf)) != -1) {
+                digest.update(buf, 0, nRead);
+            }
+            return Utils.byteArrToStr(digest.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    /* wall time and the CPU time of the whole process, so hashing threads that already exited count too */
+    private static long[] now() throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader("/proc/self/stat"));
+        try {
+            String stat = in.readLine();
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return new long[] { System.nanoTime(), ticks * (1000000000L / CLOCK_TICKS) };
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long[] since(long[] start) throws IOException {
+        long[] end = now();
+        return new long[] { end[0] - start[0], end[1] - start[1] };
+    }
+
+    private static long[] best(long[] lhs, long[] rhs) {
+        return lhs == null || rhs[0] < lhs[0] ? rhs : lhs;
+    }
+
+    private static String format(long[] time) {
+        return time[0] / 1000000 + "ms wall (" + (SIZE_MB * 1000000000L / time[0]) + "MB/s), " + time[1] / 1000000 + "ms cpu";
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/*
+ * Builds the binder transactions a progress refresh costs, with the Parcel calls the aidl
+ * generated code makes for them, and prints their dataSize() for 1, 4 and 10 running downloads:
+ *
+ *  - the old poll, getDownloadsFilt: interface token and filter in, a typed list of DlStates out
+ *  - the batch getter getProgress: interface token and ids in, a typed array of snapshots out
+ *  - a listener push with the whole DlState (onStatusChanged) or a snapshot (onProgress)
+ *
+ * The states carry what a ROM download has while it runs: a 2000 character changelog, two
+ * mirrors, a sha256, 4 segments and 256 chunks.
+ */
+public class ProgressParcelBenchmark extends TestCase {
+    private static final String SERVICE = "com.otaupdater.IDownloadService";
+    private static final String LISTENER = "com.otaupdater.IDownloadListener";
+
+    private static final long TOTAL_SIZE = 1L << 30;
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    @LargeTest
+    public void testParcelSizes() {
+        for (int n : new int[] { 1, 4, 10 }) {
+            ArrayList<DlState> states = new ArrayList<DlState>();
+            int[] ids = new int[n];
+            for (int q = 0; q < n; q++) {
+                states.add(newState(q + 1));
+                ids[q] = q + 1;
+            }
+
+            Parcel pollData = Parcel.obtain();
+            pollData.writeInterfaceToken(SERVICE);
+            pollData.writeInt(DlState.FILTER_ACTIVE);
+            Parcel pollReply = Parcel.obtain();
+            pollReply.writeNoException();
+            pollReply.writeTypedList(states);
+
+            Parcel progressData = Parcel.obtain();
+            progressData.writeInterfaceToken(SERVICE);
+            progressData.writeIntArray(ids);
+            ProgressSnapshot[] snapshots = new ProgressSnapshot[n];
+            for (int q = 0; q < n; q++) {
+                snapshots[q] = states.get(q).getSnapshot();
+            }
+            Parcel progressReply = Parcel.obtain();
+            progressReply.writeNoException();
+            progressReply.writeTypedArray(snapshots, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+
+            Parcel statePush = Parcel.obtain();
+            statePush.writeInterfaceToken(LISTENER);
+            statePush.writeInt(1);
+            states.get(0).writeToParcel(statePush, 0);
+            Parcel snapshotPush = Parcel.obtain();
+            snapshotPush.writeInterfaceToken(LISTENER);
+            snapshotPush.writeInt(1);
+            snapshots[0].writeToParcel(snapshotPush, 0);
+
+            pollReply.setDataPosition(0);
+            pollReply.readException();
+            ArrayList<DlState> polled = pollReply.createTypedArrayList(DlState.CREATOR);
+            assertEquals(n, polled.size());
+            assertEquals(states.get(n - 1).getRomInfo().changelog, polled.get(n - 1).getRomInfo().changelog);
+
+            progressReply.setDataPosition(0);
+            progressReply.readException();
+            ProgressSnapshot[] read = progressReply.createTypedArray(ProgressSnapshot.CREATOR);
+            assertEquals(n, read.length);
+            for (int q = 0; q < n; q++) {
+                polled.get(q).setTotalDone(0);
+                polled.get(q).applySnapshot(read[q]);
+                assertEquals(states.get(q).getTotalDone(), polled.get(q).getTotalDone());
+            }
+
+            System.out.println("ProgressParcelBenchmark: " + n + " downloads: getDownloadsFilt " + pollData.dataSize() + " + " +
+                    pollReply.dataSize() + " bytes, getProgress " + progressData.dataSize() + " + " + progressReply.dataSize() +
+                    " bytes; push per update: DlState " + statePush.dataSize() + " bytes, snapshot " + snapshotPush.dataSize() +
+                    " bytes (list item: DlState " + (pollReply.dataSize() - 8) / n + ", snapshot " + (progressReply.dataSize() - 8) / n +
+                    " bytes each)");
+
+            for (Parcel p : new Parcel[] { pollData, pollReply, progressData, progressReply, statePush, snapshotPush }) {
+                p.recycle();
+            }
+        }
+    }
+
+    private static DlState newState(int id) {
+        char[] changelog = new char[2000];
+        Arrays.fill(changelog, 'x');
+        RomInfo info = new RomInfo("Example ROM", "2026.10." + id, new String(changelog),
+                "http://dl.example.com/roms/example-" + id + ".zip",
+                new String[] { "http://mirror1.example.com/example-" + id + ".zip", "http://mirror2.example.com/example-" + id + ".zip" },
+                "0123456789abcdef0123456789abcdef", new Date());
+        info.sha256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+        DlState state = new DlState(info);
+        state.setId(id);
+        state.setTotalSize(TOTAL_SIZE);
+        state.setupSegments(4);
+        state.setupChunks((int) (TOTAL_SIZE / CHUNK_SIZE), CHUNK_SIZE);
+        for (int q = 0; q < 4; q++) {
+            state.incSegmentDone(q, 100 << 20);
+        }
+        for (int q = 0; q < 100; q++) {
+            state.setChunkVerified(q, true);
+        }
+        state.setStatus(DlState.STATUS_RUNNING);
+        state.setETag("\"5f1c-64a0b2c3d4e5f\"");
+        return state;
+    }
+}
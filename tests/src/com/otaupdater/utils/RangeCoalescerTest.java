@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import junit.framework.TestCase;
+
+public class RangeCoalescerTest extends TestCase {
+    private static RangeCoalescer ranges(long... bounds) {
+        RangeCoalescer coalescer = new RangeCoalescer();
+        for (int q = 0; q < bounds.length; q += 2) {
+            coalescer.add(bounds[q], bounds[q + 1]);
+        }
+        return coalescer;
+    }
+
+    private static void assertRanges(RangeCoalescer coalescer, long... bounds) {
+        assertEquals(bounds.length / 2, coalescer.size());
+        for (int q = 0; q < coalescer.size(); q++) {
+            assertEquals(bounds[q * 2], coalescer.getStart(q));
+            assertEquals(bounds[q * 2 + 1], coalescer.getEnd(q));
+        }
+    }
+
+    public void testJoinsAdjacentAndOverlappingRanges() {
+        RangeCoalescer coalescer = ranges(0, 9, 10, 19, 15, 24, 30, 39);
+        assertRanges(coalescer, 0, 24, 30, 39);
+        assertEquals(35, coalescer.getTotalBytes());
+    }
+
+    public void testRejectsRangesOutOfOrder() {
+        try {
+            ranges(10, 19, 0, 9);
+            fail("accepted ranges out of order");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testMergesGapsUpToMaxGap() {
+        RangeCoalescer coalescer = ranges(0, 9, 15, 19, 26, 29, 100, 109);
+        coalescer.coalesce(5, 10);
+        assertRanges(coalescer, 0, 19, 26, 29, 100, 109);
+    }
+
+    public void testMergesSmallestGapsDownToMaxRanges() {
+        RangeCoalescer coalescer = ranges(0, 9, 50, 59, 65, 69, 200, 209);
+        coalescer.coalesce(0, 2);
+        assertRanges(coalescer, 0, 69, 200, 209);
+    }
+
+    public void testBreaksTiesByPosition() {
+        // gaps of 10, 10 and 20: the earlier of the two equal gaps goes first
+        RangeCoalescer coalescer = ranges(0, 9, 20, 29, 40, 49, 70, 79);
+        coalescer.coalesce(0, 3);
+        assertRanges(coalescer, 0, 29, 40, 49, 70, 79);
+
+        coalescer = ranges(0, 9, 20, 29, 40, 49, 70, 79);
+        coalescer.coalesce(0, 2);
+        assertRanges(coalescer, 0, 49, 70, 79);
+    }
+
+    public void testMergesEverythingForOneRange() {
+        RangeCoalescer coalescer = ranges(0, 9, 20, 29, 40, 49);
+        coalescer.coalesce(0, 1);
+        assertRanges(coalescer, 0, 49);
+        assertEquals(50, coalescer.getTotalBytes());
+    }
+
+    public void testLeavesRangesAloneWithinLimits() {
+        RangeCoalescer coalescer = ranges(0, 9, 20, 29, 40, 49);
+        coalescer.coalesce(0, 3);
+        assertRanges(coalescer, 0, 9, 20, 29, 40, 49);
+        coalescer.coalesce(0, 0);
+        assertRanges(coalescer, 0, 9, 20, 29, 40, 49);
+    }
+
+    public void testContainsOnlyWholeRanges() {
+        RangeCoalescer coalescer = ranges(0, 9, 20, 29);
+        assertTrue(coalescer.contains(0, 9));
+        assertTrue(coalescer.contains(22, 25));
+        assertFalse(coalescer.contains(5, 25));
+        assertFalse(coalescer.contains(10, 19));
+        assertFalse(coalescer.contains(30, 31));
+    }
+}
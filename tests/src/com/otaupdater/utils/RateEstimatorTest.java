@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import junit.framework.TestCase;
+
+public class RateEstimatorTest extends TestCase {
+    public void testUnknownUntilFirstInterval() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.start(0, 1000);
+        estimator.update(100000, 1200);
+        assertEquals(-1, estimator.getRate());
+        assertEquals(-1, estimator.getSmoothedRate());
+        assertEquals(-1, estimator.getEta(1000));
+    }
+
+    public void testRatesOverWindow() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.start(0, 1000);
+        estimator.update(250000, 1250);
+        assertEquals(1000000, estimator.getRate());
+        assertEquals(1000000, estimator.getSmoothedRate());
+        assertEquals(1000000, estimator.getAverageRate());
+
+        estimator.update(750000, 1500);
+        assertEquals(1500000, estimator.getRate());
+        assertEquals(1500000, estimator.getAverageRate());
+        long smoothed = (long) (1000000 + (1 - Math.exp(-250 / 5000.0)) * 1000000);
+        assertEquals(smoothed, estimator.getSmoothedRate());
+        assertEquals(3000000 / smoothed, estimator.getEta(3000000));
+    }
+
+    public void testOldSamplesLeaveWindow() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.start(0, 0);
+        long bytes = 0;
+        for (int q = 1; q <= 20; q++) {
+            bytes += 1000000;
+            estimator.update(bytes, q * 1000);
+        }
+        for (int q = 21; q <= 40; q++) {
+            bytes += 250000;
+            estimator.update(bytes, q * 1000);
+        }
+        assertEquals(250000, estimator.getRate());
+        assertEquals(bytes / 40, estimator.getAverageRate());
+    }
+
+    public void testRestartsWhenBytesGoBack() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.start(0, 0);
+        estimator.update(500000, 500);
+        assertTrue(estimator.getRate() > 0);
+
+        estimator.update(100, 1000);
+        assertEquals(-1, estimator.getRate());
+        estimator.update(100100, 1250);
+        assertEquals(400000, estimator.getRate());
+    }
+
+    public void testStopClearsRates() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.start(0, 0);
+        estimator.update(500000, 500);
+        estimator.stop();
+        assertEquals(-1, estimator.getRate());
+        assertEquals(-1, estimator.getAverageRate());
+    }
+}
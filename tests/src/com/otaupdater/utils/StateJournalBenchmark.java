@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+/*
+ * Drives StateJournal the way DownloadService.saveState does for 1, 10 and 100 running
+ * downloads over SECONDS of simulated time and prints the bytes it wrote, compactions
+ * included, next to what the old service_state file rewrites would have written.
+ *
+ * Each download gets a forced save when it starts, one progress save per WRITE_STATE_DELAY
+ * (progress updates come in far more often, so the per-download throttle always applies),
+ * and every PAUSE_EVERY ticks one of them pauses and resumes, which is two more forced
+ * saves. The old saveState wrote the whole DOWNLOADS array and queue with one
+ * ObjectOutputStream, at most once per WRITE_STATE_DELAY across all downloads unless forced.
+ */
+public class StateJournalBenchmark extends TestCase {
+    private static final int SECONDS = 60;
+    private static final int WRITE_STATE_DELAY = 100;
+    private static final int TICKS = SECONDS * 1000 / WRITE_STATE_DELAY;
+    private static final int PAUSE_EVERY = 100;
+
+    private static final long TOTAL_SIZE = 1L << 30;
+    private static final int NUM_SEGMENTS = 4;
+    private static final int CHUNK_SIZE = 4 << 20;
+    private static final int BYTES_PER_TICK = 200 << 10;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("journal", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @LargeTest
+    public void testBytesWritten() throws Exception {
+        for (int n : new int[] { 1, 10, 100 }) {
+            run(n);
+        }
+    }
+
+    private void run(int numDownloads) throws IOException {
+        File file = new File(dir, "state_journal." + numDownloads);
+        StateJournal journal = new StateJournal(file);
+        SparseArray<DlState> downloads = new SparseArray<DlState>();
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+        long legacyBytes = 0, compactionBytes = 0;
+        int legacyWrites = 0;
+
+        long start = System.nanoTime();
+        for (int q = 0; q < numDownloads; q++) {
+            DlState state = newState(q + 1);
+            downloads.put(state.getId(), state);
+            queue.add(state.getId());
+            journal.writeState(state);
+            journal.writeQueue(queue);
+            compactionBytes += compactIfNeeded(journal, downloads, queue);
+            legacyBytes += legacySize(downloads, queue);
+            legacyWrites++;
+        }
+
+        for (int tick = 1; tick <= TICKS; tick++) {
+            for (int q = 0; q < downloads.size(); q++) {
+                DlState state = downloads.valueAt(q);
+                state.incSegmentDone(tick % NUM_SEGMENTS, BYTES_PER_TICK);
+                int chunk = (int) (state.getTotalDone() / CHUNK_SIZE);
+                if (chunk > 0) state.setChunkVerified(chunk - 1, true);
+                journal.writeProgress(state, 0);
+                compactionBytes += compactIfNeeded(journal, downloads, queue);
+            }
+            legacyBytes += legacySize(downloads, queue);
+            legacyWrites++;
+
+            if (tick % PAUSE_EVERY == 0) {
+                DlState state = downloads.valueAt((tick / PAUSE_EVERY) % downloads.size());
+                for (int status : new int[] { DlState.STATUS_PAUSED_USER, DlState.STATUS_RUNNING }) {
+                    state.setStatus(status);
+                    journal.writeState(state);
+                    journal.writeQueue(queue);
+                    compactionBytes += compactIfNeeded(journal, downloads, queue);
+                    legacyBytes += legacySize(downloads, queue);
+                    legacyWrites++;
+                }
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        journal.close();
+
+        SparseArray<DlState> replayed = new SparseArray<DlState>();
+        assertTrue(journal.load(replayed, new ArrayList<Integer>()));
+        assertEquals(numDownloads, replayed.size());
+        for (int q = 0; q < numDownloads; q++) {
+            assertEquals(downloads.valueAt(q).getTotalDone(), replayed.valueAt(q).getTotalDone());
+        }
+
+        long written = journal.getBytesWritten();
+        System.out.println("StateJournalBenchmark: " + numDownloads + " downloads, " + SECONDS + "s: journal " +
+                written + " bytes (" + written / SECONDS + "B/s, " + journal.getNumCompactions() + " compactions, " +
+                compactionBytes + " bytes of it), file " + file.length() + " bytes, " + elapsed + "ms; old state file " +
+                legacyBytes + " bytes (" + legacyBytes / SECONDS + "B/s, " + legacyWrites + " rewrites)");
+    }
+
+    /* the tail of saveState */
+    private static long compactIfNeeded(StateJournal journal, SparseArray<DlState> downloads, ArrayList<Integer> queue) {
+        if (!journal.needsCompaction()) return 0;
+        long before = journal.getBytesWritten();
+        assertTrue(journal.compact(downloads, queue));
+        return journal.getBytesWritten() - before;
+    }
+
+    private static DlState newState(int id) {
+        char[] changelog = new char[3000];
+        Arrays.fill(changelog, 'x');
+        RomInfo info = new RomInfo("Example ROM", "2026.10." + id, new String(changelog),
+                "http://dl.example.com/roms/example-" + id + ".zip",
+                new String[] { "http://mirror1.example.com/example-" + id + ".zip", "http://mirror2.example.com/example-" + id + ".zip" },
+                "0123456789abcdef0123456789abcdef", new Date());
+
+        DlState state = new DlState(info);
+        state.setId(id);
+        state.setTotalSize(TOTAL_SIZE);
+        state.setupSegments(NUM_SEGMENTS);
+        state.setupChunks((int) (TOTAL_SIZE / CHUNK_SIZE), CHUNK_SIZE);
+        state.setDigest(new Md5());
+        state.setStatus(DlState.STATUS_RUNNING);
+        state.setETag("\"5f1c-64a0b2c3d4e5f\"");
+        return state;
+    }
+
+    /* bytes the old saveState wrote for the same downloads and queue */
+    private static long legacySize(SparseArray<DlState> downloads, ArrayList<Integer> queue) throws IOException {
+        CountingStream count = new CountingStream();
+        ObjectOutputStream os = new ObjectOutputStream(count);
+        os.writeInt(downloads.size());
+        for (int q = 0; q < downloads.size(); q++) {
+            os.writeInt(downloads.keyAt(q));
+            os.writeObject(downloads.valueAt(q));
+        }
+        os.writeObject(queue);
+        os.close();
+        return count.count;
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
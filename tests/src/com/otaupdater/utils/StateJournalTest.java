@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.otaupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+public class StateJournalTest extends TestCase {
+    private File file;
+    private StateJournal journal;
+
+    /* file length after each record, the header ends at 8 */
+    private final ArrayList<Long> ends = new ArrayList<Long>();
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("journal", null);
+        file.delete();
+        journal = new StateJournal(file);
+    }
+
+    @Override
+    protected void tearDown() {
+        journal.close();
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    private static DlState newState(int id) {
+        RomInfo info = new RomInfo("Example ROM", "2026.10." + id, "changes", "http://dl.example.com/example-" + id + ".zip",
+                new String[0], "0123456789abcdef0123456789abcdef", new Date(0));
+        DlState state = new DlState(info);
+        state.setId(id);
+        state.setTotalSize(1000);
+        state.setupSegments(2);
+        state.setupChunks(4, 250);
+        state.setStatus(DlState.STATUS_RUNNING);
+        return state;
+    }
+
+    /* two downloads, each with a state and a progress record, and the queue in between */
+    private void writeTwo() {
+        DlState first = newState(1);
+        journal.writeState(first);
+        ends.add(file.length());
+        journal.writeQueue(Arrays.asList(1, 2));
+        ends.add(file.length());
+        first.incSegmentDone(0, 300);
+        first.setChunkVerified(0, true);
+        first.setDigest(new Md5());
+        first.getDigest().update(new byte[300], 0, 300);
+        journal.writeProgress(first, 0);
+        ends.add(file.length());
+
+        DlState second = newState(2);
+        journal.writeState(second);
+        ends.add(file.length());
+        second.incSegmentDone(1, 100);
+        journal.writeProgress(second, 0);
+        ends.add(file.length());
+        journal.close();
+    }
+
+    private SparseArray<DlState> replay(ArrayList<Integer> queue) {
+        SparseArray<DlState> downloads = new SparseArray<DlState>();
+        assertTrue(new StateJournal(file).load(downloads, queue));
+        return downloads;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+
+    private void flipByte(long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xff);
+        raf.close();
+    }
+
+    public void testReplaysEveryRecord() {
+        writeTwo();
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+        SparseArray<DlState> downloads = replay(queue);
+
+        assertEquals(Arrays.asList(1, 2), queue);
+        assertEquals(2, downloads.size());
+        DlState first = downloads.get(1);
+        assertEquals(300, first.getTotalDone());
+        assertEquals(300, first.getSegmentDone(0));
+        assertTrue(first.isChunkVerified(0));
+        assertFalse(first.isChunkVerified(1));
+        assertEquals(300, first.getDigest().getCount());
+        assertEquals(100, downloads.get(2).getSegmentDone(1));
+    }
+
+    public void testTornRecordLosesOnlyItself() throws IOException {
+        writeTwo();
+        truncate(ends.get(4) - 3);
+
+        SparseArray<DlState> downloads = replay(new ArrayList<Integer>());
+        assertEquals(2, downloads.size());
+        assertEquals(300, downloads.get(1).getTotalDone());
+        assertEquals(0, downloads.get(2).getTotalDone());
+    }
+
+    public void testTornHeaderOfRecord() throws IOException {
+        writeTwo();
+        truncate(ends.get(2) + 3);
+
+        SparseArray<DlState> downloads = replay(new ArrayList<Integer>());
+        assertEquals(1, downloads.size());
+        assertEquals(300, downloads.get(1).getTotalDone());
+    }
+
+    public void testStopsAtCorruptRecord() throws IOException {
+        writeTwo();
+        flipByte(ends.get(2) + 20);
+
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+        SparseArray<DlState> downloads = replay(queue);
+        assertEquals(Arrays.asList(1, 2), queue);
+        assertEquals(1, downloads.size());
+        assertEquals(300, downloads.get(1).getTotalDone());
+        assertNull(downloads.get(2));
+    }
+
+    public void testCompactionAfterTornReplay() throws IOException {
+        writeTwo();
+        truncate(ends.get(4) - 3);
+        ArrayList<Integer> queue = new ArrayList<Integer>();
+        SparseArray<DlState> downloads = replay(queue);
+
+        StateJournal compacted = new StateJournal(file);
+        assertTrue(compacted.compact(downloads, queue));
+        downloads.get(2).incSegmentDone(1, 50);
+        compacted.writeProgress(downloads.get(2), 0);
+        compacted.close();
+
+        downloads = replay(queue);
+        assertEquals(2, downloads.size());
+        assertEquals(300, downloads.get(1).getTotalDone());
+        assertEquals(50, downloads.get(2).getTotalDone());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    public void testRemoveDropsDownload() {
+        writeTwo();
+        StateJournal reopened = new StateJournal(file);
+        reopened.writeRemove(1);
+        reopened.close();
+
+        SparseArray<DlState> downloads = replay(new ArrayList<Integer>());
+        assertEquals(1, downloads.size());
+        assertNotNull(downloads.get(2));
+    }
+
+    public void testMissingOrForeignFile() throws IOException {
+        assertFalse(journal.load(new SparseArray<DlState>(), new ArrayList<Integer>()));
+
+        writeTwo();
+        flipByte(0);
+        assertFalse(new StateJournal(file).load(new SparseArray<DlState>(), new ArrayList<Integer>()));
+    }
+}